@@ -0,0 +1,61 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.andunix.android.wikidroid;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter.
+ * <p>
+ * The delay doubles with every failed attempt up to a maximum. The actual
+ * delay is picked at random from the upper half of that, so clients which
+ * failed together don't all retry at the same moment.
+ */
+public class Backoff {
+
+	private final long mBaseDelay;
+	private final long mMaxDelay;
+	private final Random mRandom = new Random();
+
+	/**
+	 * @param baseDelay
+	 *            the delay after the first failure, in milliseconds
+	 * @param maxDelay
+	 *            the longest delay, in milliseconds
+	 */
+	public Backoff(long baseDelay, long maxDelay) {
+		mBaseDelay = baseDelay;
+		mMaxDelay = maxDelay;
+	}
+
+	/**
+	 * @param attempts
+	 *            the number of failed attempts so far, at least 1
+	 * @return the time to wait before the next attempt, in milliseconds
+	 */
+	public long getDelay(int attempts) {
+		long delay = mMaxDelay;
+		int shift = Math.max(attempts - 1, 0);
+		if ((shift < 31) && ((mBaseDelay << shift) < mMaxDelay)) {
+			delay = mBaseDelay << shift;
+		}
+		synchronized (mRandom) {
+			return delay / 2L + (long) (mRandom.nextDouble() * (delay / 2L));
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.andunix.android.wikidroid;
+
+/**
+ * Stops a sync when too many of its recent calls failed.
+ * <p>
+ * The outcomes of the last calls are kept in a ring. Once enough calls have
+ * been seen and the share of failures among them reaches the threshold, the
+ * breaker opens and {@link #check()} throws, so a struggling server doesn't
+ * get the rest of the run thrown at it.
+ */
+public class CircuitBreaker {
+
+	public static class OpenException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public OpenException(String message) {
+			super(message);
+		}
+	}
+
+	private final boolean[] mFailures;
+	private final int mMinCalls;
+	private final double mThreshold;
+	private int mNext = 0;
+	private int mCalls = 0;
+	private int mFailureCount = 0;
+	private boolean mOpen = false;
+
+	/**
+	 * @param window
+	 *            the number of recent calls looked at
+	 * @param minCalls
+	 *            the number of calls needed before the breaker can open
+	 * @param threshold
+	 *            the share of failures opening the breaker, 0.0 to 1.0
+	 */
+	public CircuitBreaker(int window, int minCalls, double threshold) {
+		mFailures = new boolean[window];
+		mMinCalls = minCalls;
+		mThreshold = threshold;
+	}
+
+	public synchronized void recordSuccess() {
+		record(false);
+	}
+
+	public synchronized void recordFailure() {
+		record(true);
+	}
+
+	private void record(boolean failure) {
+		if (mCalls == mFailures.length) {
+			if (mFailures[mNext]) {
+				mFailureCount--;
+			}
+		} else {
+			mCalls++;
+		}
+		mFailures[mNext] = failure;
+		if (failure) {
+			mFailureCount++;
+		}
+		mNext = (mNext + 1) % mFailures.length;
+		if ((mCalls >= mMinCalls) && (mFailureCount >= mThreshold * mCalls)) {
+			mOpen = true;
+		}
+	}
+
+	public synchronized boolean isOpen() {
+		return mOpen;
+	}
+
+	/**
+	 * @throws OpenException
+	 *             if the breaker is open
+	 */
+	public synchronized void check() {
+		if (mOpen) {
+			throw new OpenException(mFailureCount+" of the last "+mCalls+" calls failed");
+		}
+	}
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * MD5 hash of a page body, used to tell whether it really changed.
+ */
+public class ContentHash {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private ContentHash() {}
+
+	/**
+	 * @return the hex encoded hash or <code>null</code> for a
+	 *         <code>null</code> body
+	 */
+	public static String of(String body) {
+		if (body == null) {
+			return null;
+		}
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(body.getBytes("UTF-8"));
+			char[] result = new char[digest.length * 2];
+			for (int i = 0; i < digest.length; i++) {
+				result[2 * i] = HEX[(digest[i] >> 4) & 0x0f];
+				result[2 * i + 1] = HEX[digest[i] & 0x0f];
+			}
+			return new String(result);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -17,14 +17,30 @@
 
 package net.andunix.android.wikidroid;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 public class DatabaseController {
@@ -32,32 +48,217 @@ public class DatabaseController {
 	private static final String TAG = "DatabaseController";
 
 	private static final String DATABASE_NAME = "wikidroid";
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 11;
 	
 	public static final String KEY_ROWID = "_id";
 	public static final String KEY_NAME = "name";
 	public static final String KEY_TEXT = "text";
+	public static final String KEY_TEXT_Z = "text_z";
 	public static final String KEY_CHANGED_AT = "changed_at";
 	public static final String KEY_CREATED_AT = "created_at";
 	public static final String KEY_REMOTE_CHANGED_AT = "remote_changed_at";
 	public static final String KEY_SYNCED_AT = "synced_at";
+	public static final String KEY_BODY_HASH = "body_hash";
+	public static final String KEY_SYNCED_HASH = "synced_hash";
+	/** the last synced body of a page with local changes, the merge base */
+	public static final String KEY_BASE_TEXT = "base_text";
+	public static final String KEY_BASE_TEXT_Z = "base_text_z";
+	/** the namespace of a page, "" for the root namespace */
+	public static final String KEY_NAMESPACE = "namespace";
 
 	private static final String PAGE_TABLE = "pages";
 	public static final String[] PAGE_TABLE_COLS = { KEY_ROWID, KEY_NAME,
-		KEY_TEXT, KEY_CHANGED_AT, KEY_REMOTE_CHANGED_AT,
-		KEY_SYNCED_AT };
+		KEY_TEXT, KEY_TEXT_Z, KEY_CHANGED_AT, KEY_REMOTE_CHANGED_AT,
+		KEY_SYNCED_AT, KEY_BODY_HASH, KEY_SYNCED_HASH };
 	private static final String PAGE_TABLE_CREATE = "CREATE TABLE "
 			+ PAGE_TABLE + " ("+KEY_ROWID+" integer primary key autoincrement, "
 			+ KEY_NAME + " text not null, " + KEY_TEXT + " text not null, "
-			+ KEY_CHANGED_AT + " date, " + KEY_REMOTE_CHANGED_AT
-			+ " date, " + KEY_SYNCED_AT + " date);";
+			+ KEY_TEXT_Z + " blob, " + KEY_CHANGED_AT + " date, " + KEY_REMOTE_CHANGED_AT
+			+ " date, " + KEY_SYNCED_AT + " date, " + KEY_BODY_HASH + " text, "
+			+ KEY_SYNCED_HASH + " text, " + KEY_BASE_TEXT + " text, "
+			+ KEY_BASE_TEXT_Z + " blob, " + KEY_NAMESPACE
+			+ " text not null default '');";
+	private static final String PAGE_NAME_INDEX_CREATE = "CREATE UNIQUE INDEX "
+			+ PAGE_TABLE + "_" + KEY_NAME + " ON " + PAGE_TABLE + " ("
+			+ KEY_NAME + ");";
+	private static final String PAGE_NAMESPACE_INDEX_CREATE = "CREATE INDEX "
+			+ PAGE_TABLE + "_" + KEY_NAMESPACE + " ON " + PAGE_TABLE + " ("
+			+ KEY_NAMESPACE + ", " + KEY_NAME + ");";
+	/** columns needed to show the page list, without the page bodies */
+	public static final String[] PAGE_LIST_COLS = { KEY_ROWID, KEY_NAME };
+	private static final String[] PAGE_INFO_COLS = { KEY_NAME, KEY_BODY_HASH };
+	private static final String[] PAGE_SNAPSHOT_COLS = { KEY_NAME, KEY_ROWID,
+		KEY_CHANGED_AT, KEY_REMOTE_CHANGED_AT, KEY_SYNCED_AT };
 
+	public static final String KEY_RUN_ID = "run_id";
+	public static final String KEY_LEVEL = "level";
+	public static final String KEY_PAGE = "page";
+
+	/** the {@link EventLog} */
 	private static final String LOG_TABLE = "log";
-	public static final String[] LOG_TABLE_COLS = { KEY_ROWID, KEY_TEXT, KEY_CREATED_AT };
+	public static final String[] LOG_TABLE_COLS = { KEY_ROWID, KEY_TEXT,
+		KEY_CREATED_AT, KEY_RUN_ID, KEY_LEVEL, KEY_PAGE };
 	private static final String LOG_TABLE_CREATE = "CREATE TABLE "
 			+ LOG_TABLE + " ("+KEY_ROWID+" integer primary key autoincrement, "
 			+ KEY_TEXT + " text not null, "
-			+ KEY_CREATED_AT + " date);";
+			+ KEY_CREATED_AT + " date, " + KEY_RUN_ID + " integer, "
+			+ KEY_LEVEL + " integer not null default 0, " + KEY_PAGE + " text);";
+	private static final String LOG_RUN_INDEX_CREATE = "CREATE INDEX "
+			+ LOG_TABLE + "_" + KEY_RUN_ID + " ON " + LOG_TABLE + " ("
+			+ KEY_RUN_ID + ");";
+	private static final String LOG_INSERT = "INSERT INTO " + LOG_TABLE + " ("
+			+ KEY_TEXT + ", " + KEY_CREATED_AT + ", " + KEY_RUN_ID + ", "
+			+ KEY_LEVEL + ", " + KEY_PAGE + ") VALUES (?, ?, ?, ?, ?)";
+
+	public static final String KEY_ACTION = "action";
+	public static final String KEY_ATTEMPTS = "attempts";
+	public static final String KEY_NEXT_ATTEMPT_AT = "next_attempt_at";
+
+	/** pages planned for download or upload which are not done yet */
+	private static final String QUEUE_TABLE = "sync_queue";
+	private static final String[] QUEUE_TABLE_COLS = { KEY_NAME, KEY_ACTION,
+		KEY_REMOTE_CHANGED_AT, KEY_ATTEMPTS, KEY_NEXT_ATTEMPT_AT };
+	private static final String QUEUE_TABLE_CREATE = "CREATE TABLE "
+			+ QUEUE_TABLE + " (" + KEY_ROWID + " integer primary key autoincrement, "
+			+ KEY_NAME + " text not null unique, " + KEY_ACTION + " integer not null, "
+			+ KEY_REMOTE_CHANGED_AT + " date, " + KEY_ATTEMPTS
+			+ " integer not null default 0, " + KEY_NEXT_ATTEMPT_AT
+			+ " date not null default 0);";
+	/** queues a page, a page already queued keeps its failed attempts */
+	private static final String QUEUE_INSERT = "INSERT OR REPLACE INTO "
+			+ QUEUE_TABLE + " (" + KEY_NAME + ", " + KEY_ACTION + ", "
+			+ KEY_REMOTE_CHANGED_AT + ", " + KEY_ATTEMPTS + ", "
+			+ KEY_NEXT_ATTEMPT_AT + ") SELECT ?1, ?2, ?3, "
+			+ "COALESCE(MAX(" + KEY_ATTEMPTS + "), 0), COALESCE(MAX("
+			+ KEY_NEXT_ATTEMPT_AT + "), 0) FROM " + QUEUE_TABLE + " WHERE "
+			+ KEY_NAME + "=?1";
+	private static final String QUEUE_DELETE = "DELETE FROM " + QUEUE_TABLE
+			+ " WHERE " + KEY_NAME + "=?";
+	private static final String QUEUE_ATTEMPTS = "SELECT " + KEY_ATTEMPTS
+			+ " FROM " + QUEUE_TABLE + " WHERE " + KEY_NAME + "=?";
+	private static final String QUEUE_FAIL = "UPDATE " + QUEUE_TABLE + " SET "
+			+ KEY_ATTEMPTS + "=?, " + KEY_NEXT_ATTEMPT_AT + "=? WHERE "
+			+ KEY_NAME + "=?";
+
+	public static final String KEY_DURATION = "duration";
+	public static final String KEY_DOWNLOADED = "downloaded";
+	public static final String KEY_UPLOADED = "uploaded";
+	public static final String KEY_MERGED = "merged";
+	public static final String KEY_FAILED = "failed";
+	public static final String KEY_REQUESTS = "requests";
+	public static final String KEY_BYTES_SENT = "bytes_sent";
+	public static final String KEY_BYTES_RECEIVED = "bytes_received";
+	public static final String KEY_DB_TIME = "db_time";
+
+	/** a summary of each sync run */
+	private static final String SYNC_RUN_TABLE = "sync_runs";
+	public static final String[] SYNC_RUN_TABLE_COLS = { KEY_ROWID,
+		KEY_CREATED_AT, KEY_DURATION, KEY_DOWNLOADED, KEY_UPLOADED, KEY_MERGED,
+		KEY_FAILED, KEY_REQUESTS, KEY_BYTES_SENT, KEY_BYTES_RECEIVED,
+		KEY_DB_TIME, KEY_TEXT };
+	private static final String SYNC_RUN_TABLE_CREATE = "CREATE TABLE "
+			+ SYNC_RUN_TABLE + " (" + KEY_ROWID + " integer primary key autoincrement, "
+			+ KEY_CREATED_AT + " date, " + KEY_DURATION + " integer, "
+			+ KEY_DOWNLOADED + " integer, " + KEY_UPLOADED + " integer, "
+			+ KEY_MERGED + " integer, " + KEY_FAILED + " integer, "
+			+ KEY_REQUESTS + " integer, " + KEY_BYTES_SENT + " integer, "
+			+ KEY_BYTES_RECEIVED + " integer, " + KEY_DB_TIME + " integer, "
+			+ KEY_TEXT + " text);";
+	/** the number of sync runs kept */
+	private static final int MAX_SYNC_RUNS = 50;
+
+	public static final String KEY_PARENT = "parent";
+	public static final String KEY_PAGES = "pages";
+	public static final String KEY_TOTAL = "total";
+	public static final String KEY_IS_NAMESPACE = "is_namespace";
+
+	/**
+	 * All namespaces with their page counts, the direct pages and the ones
+	 * in all sub-namespaces. The counts are updated with every page added or
+	 * deleted, so they never need a scan of the pages.
+	 */
+	private static final String NAMESPACE_TABLE = "namespaces";
+	private static final String NAMESPACE_TABLE_CREATE = "CREATE TABLE "
+			+ NAMESPACE_TABLE + " (" + KEY_ROWID + " integer primary key autoincrement, "
+			+ KEY_NAME + " text not null unique, " + KEY_PARENT + " text not null, "
+			+ KEY_PAGES + " integer not null default 0, " + KEY_TOTAL
+			+ " integer not null default 0);";
+	private static final String NAMESPACE_PARENT_INDEX_CREATE = "CREATE INDEX "
+			+ NAMESPACE_TABLE + "_" + KEY_PARENT + " ON " + NAMESPACE_TABLE
+			+ " (" + KEY_PARENT + ", " + KEY_NAME + ");";
+	private static final String NAMESPACE_INSERT = "INSERT OR IGNORE INTO "
+			+ NAMESPACE_TABLE + " (" + KEY_NAME + ", " + KEY_PARENT
+			+ ") VALUES (?, ?)";
+	/** adds ?1 pages in namespace ?2 to the counts of its ancestor ?3 */
+	private static final String NAMESPACE_COUNT = "UPDATE " + NAMESPACE_TABLE
+			+ " SET " + KEY_TOTAL + "=" + KEY_TOTAL + "+?1, " + KEY_PAGES + "="
+			+ KEY_PAGES + "+(CASE WHEN " + KEY_NAME + "=?2 THEN ?1 ELSE 0 END) WHERE "
+			+ KEY_NAME + "=?3";
+	/** the columns of {@link #fetchNamespaceChildren(String)} */
+	public static final String[] NAMESPACE_CHILD_COLS = { KEY_ROWID, KEY_NAME,
+		KEY_TOTAL, KEY_IS_NAMESPACE };
+
+	public static final String KEY_SNIPPET = "snippet";
+
+	/**
+	 * The full-text index of page names and bodies, its docid is the row id
+	 * of the page. It is written in the same transaction as the page.
+	 * <p>
+	 * FTS3 keeps its own uncompressed copy of every body besides the
+	 * index, about twice the size of the bodies before compression. The
+	 * tables without their own copy need FTS4 from SQLite 3.7.9, which
+	 * Android only has from 4.1 on. So indexing the bodies can be turned
+	 * off, then only the page names are searched.
+	 */
+	private static final String FTS_TABLE = "pages_fts";
+	private static final String FTS_TABLE_CREATE = "CREATE VIRTUAL TABLE "
+			+ FTS_TABLE + " USING fts3(" + KEY_NAME + ", " + KEY_TEXT + ");";
+	private static final String FTS_INSERT = "INSERT INTO " + FTS_TABLE
+			+ " (docid, " + KEY_NAME + ", " + KEY_TEXT + ") VALUES (?, ?, ?)";
+	private static final String FTS_DELETE = "DELETE FROM " + FTS_TABLE
+			+ " WHERE docid=?";
+	/** the columns of the {@link #search(String, int)} results */
+	public static final String[] SEARCH_COLS = { KEY_ROWID, KEY_NAME, KEY_SNIPPET };
+
+	private static final String PAGE_INSERT = "INSERT INTO " + PAGE_TABLE
+			+ " (" + KEY_NAME + ", " + KEY_TEXT + ", " + KEY_TEXT_Z + ", "
+			+ KEY_CHANGED_AT + ", " + KEY_REMOTE_CHANGED_AT + ", "
+			+ KEY_SYNCED_AT + ", " + KEY_BODY_HASH + ", " + KEY_SYNCED_HASH
+			+ ", " + KEY_BASE_TEXT + ", " + KEY_BASE_TEXT_Z + ", " + KEY_NAMESPACE
+			+ ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String PAGE_UPDATE = "UPDATE " + PAGE_TABLE
+			+ " SET " + KEY_NAME + "=?, " + KEY_TEXT + "=?, " + KEY_TEXT_Z
+			+ "=?, " + KEY_CHANGED_AT + "=?, " + KEY_REMOTE_CHANGED_AT
+			+ "=?, " + KEY_SYNCED_AT + "=?, " + KEY_BODY_HASH + "=?, "
+			+ KEY_SYNCED_HASH + "=?, " + KEY_BASE_TEXT + "=?, "
+			+ KEY_BASE_TEXT_Z + "=? WHERE " + KEY_ROWID + "=?";
+	/**
+	 * Saves an edited body in one statement: ?1 text, ?2 text_z, ?3 body
+	 * hash, ?4 now, ?5 row id, ?6 the hash of the body the edit is based on
+	 * or NULL. The first edit after a sync keeps the synced body as merge
+	 * base, and a body edited back to the synced one is not dirty. Nothing
+	 * is written if the body didn't change, or if the stored body is not
+	 * the one the edit is based on.
+	 */
+	private static final String PAGE_BODY_UPDATE = "UPDATE " + PAGE_TABLE + " SET "
+			+ KEY_BASE_TEXT + "=(CASE WHEN " + KEY_BODY_HASH + "=" + KEY_SYNCED_HASH
+			+ " THEN " + KEY_TEXT + " ELSE " + KEY_BASE_TEXT + " END), "
+			+ KEY_BASE_TEXT_Z + "=(CASE WHEN " + KEY_BODY_HASH + "=" + KEY_SYNCED_HASH
+			+ " THEN " + KEY_TEXT_Z + " ELSE " + KEY_BASE_TEXT_Z + " END), "
+			+ KEY_TEXT + "=?1, " + KEY_TEXT_Z + "=?2, " + KEY_BODY_HASH + "=?3, "
+			+ KEY_CHANGED_AT + "=(CASE WHEN " + KEY_SYNCED_HASH + "=?3 THEN "
+			+ KEY_SYNCED_AT + " ELSE ?4 END) WHERE " + KEY_ROWID + "=?5 AND ("
+			+ KEY_BODY_HASH + " IS NULL OR " + KEY_BODY_HASH + "<>?3) AND (?6 IS NULL OR "
+			+ KEY_BODY_HASH + "=?6)";
+	private static final String FTS_BODY_UPDATE = "UPDATE " + FTS_TABLE
+			+ " SET " + KEY_TEXT + "=? WHERE docid=?";
+	/** commit a sync batch after this many writes, so readers get a chance */
+	private static final int SYNC_BATCH_COMMIT_SIZE = 500;
+	/**
+	 * or once its transaction has been open this long; without write-ahead
+	 * logging a reader waits for the whole transaction
+	 */
+	private static final long SYNC_BATCH_MAX_NANOS = 250L * 1000000L;
 
 	private static class DatabaseHelper extends SQLiteOpenHelper {
 
@@ -68,22 +269,241 @@ public class DatabaseController {
 		@Override
 		public void onCreate(SQLiteDatabase db) {
 			db.execSQL(PAGE_TABLE_CREATE);
+			db.execSQL(PAGE_NAME_INDEX_CREATE);
 			db.execSQL(LOG_TABLE_CREATE);
+			db.execSQL(LOG_RUN_INDEX_CREATE);
+			db.execSQL(QUEUE_TABLE_CREATE);
+			db.execSQL(SYNC_RUN_TABLE_CREATE);
+			db.execSQL(FTS_TABLE_CREATE);
+			db.execSQL(PAGE_NAMESPACE_INDEX_CREATE);
+			db.execSQL(NAMESPACE_TABLE_CREATE);
+			db.execSQL(NAMESPACE_PARENT_INDEX_CREATE);
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 			Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-					+ newVersion + ", which will destroy all old data");
-			// FIXME: do real _upgrade_
-			db.execSQL("DROP TABLE IF EXISTS " + PAGE_TABLE);
-			db.execSQL("DROP TABLE IF EXISTS " + LOG_TABLE);
-			onCreate(db);
+					+ newVersion);
+			if (oldVersion < 2) {
+				// page names were not unique before, keep the newest row
+				// with unsynced changes, or the newest row if there is none
+				db.execSQL("DELETE FROM " + PAGE_TABLE + " WHERE " + KEY_ROWID
+						+ " NOT IN (SELECT (SELECT p." + KEY_ROWID + " FROM "
+						+ PAGE_TABLE + " p WHERE p." + KEY_NAME + "=n." + KEY_NAME
+						+ " ORDER BY IFNULL(p." + KEY_CHANGED_AT + ", 0)>IFNULL(p."
+						+ KEY_SYNCED_AT + ", 0) DESC, p." + KEY_ROWID
+						+ " DESC LIMIT 1) FROM (SELECT DISTINCT " + KEY_NAME
+						+ " FROM " + PAGE_TABLE + ") n)");
+				db.execSQL(PAGE_NAME_INDEX_CREATE);
+			}
+			if (oldVersion < 3) {
+				db.execSQL("ALTER TABLE " + PAGE_TABLE + " ADD COLUMN "
+						+ KEY_TEXT_Z + " blob");
+				compressPages(db);
+			}
+			if (oldVersion < 4) {
+				db.execSQL("ALTER TABLE " + PAGE_TABLE + " ADD COLUMN "
+						+ KEY_BODY_HASH + " text");
+				db.execSQL("ALTER TABLE " + PAGE_TABLE + " ADD COLUMN "
+						+ KEY_SYNCED_HASH + " text");
+				hashPages(db);
+			}
+			if (oldVersion < 5) {
+				// pages changed before have no merge base, they are merged
+				// as a whole
+				db.execSQL("ALTER TABLE " + PAGE_TABLE + " ADD COLUMN "
+						+ KEY_BASE_TEXT + " text");
+				db.execSQL("ALTER TABLE " + PAGE_TABLE + " ADD COLUMN "
+						+ KEY_BASE_TEXT_Z + " blob");
+			}
+			if (oldVersion < 6) {
+				db.execSQL(QUEUE_TABLE_CREATE);
+			} else if (oldVersion < 7) {
+				db.execSQL("ALTER TABLE " + QUEUE_TABLE + " ADD COLUMN "
+						+ KEY_NEXT_ATTEMPT_AT + " date not null default 0");
+			}
+			if (oldVersion < 8) {
+				db.execSQL(SYNC_RUN_TABLE_CREATE);
+			}
+			if (oldVersion < 9) {
+				// the old unstructured log is dropped
+				db.execSQL("DROP TABLE " + LOG_TABLE);
+				db.execSQL(LOG_TABLE_CREATE);
+				db.execSQL(LOG_RUN_INDEX_CREATE);
+			}
+			if (oldVersion < 10) {
+				db.execSQL(FTS_TABLE_CREATE);
+				indexPages(db);
+			}
+			if (oldVersion < 11) {
+				db.execSQL("ALTER TABLE " + PAGE_TABLE + " ADD COLUMN "
+						+ KEY_NAMESPACE + " text not null default ''");
+				db.execSQL(PAGE_NAMESPACE_INDEX_CREATE);
+				db.execSQL(NAMESPACE_TABLE_CREATE);
+				db.execSQL(NAMESPACE_PARENT_INDEX_CREATE);
+				countNamespaces(db);
+			}
+		}
+
+		/**
+		 * Sets the namespace of all pages and counts the pages of each
+		 * namespace.
+		 */
+		private void countNamespaces(SQLiteDatabase db) {
+			Cursor cursor = db.query(PAGE_TABLE, new String[] { KEY_ROWID,
+					KEY_NAME }, null, null, null, null, null);
+			SQLiteStatement update = db.compileStatement("UPDATE " + PAGE_TABLE
+					+ " SET " + KEY_NAMESPACE + "=? WHERE " + KEY_ROWID + "=?");
+			try {
+				for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+					update.bindString(1, WikiPage.getNamespace(cursor.getString(1)));
+					update.bindLong(2, cursor.getLong(0));
+					update.execute();
+				}
+			} finally {
+				update.close();
+				cursor.close();
+			}
+			cursor = db.rawQuery("SELECT " + KEY_NAMESPACE + ", COUNT(*) FROM "
+					+ PAGE_TABLE + " GROUP BY " + KEY_NAMESPACE, null);
+			SQLiteStatement insert = db.compileStatement(NAMESPACE_INSERT);
+			SQLiteStatement count = db.compileStatement(NAMESPACE_COUNT);
+			try {
+				for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+					countPages(insert, count, cursor.getString(0), cursor.getLong(1));
+				}
+			} finally {
+				insert.close();
+				count.close();
+				cursor.close();
+			}
+		}
+
+		/**
+		 * Adds all pages to the full-text index.
+		 */
+		private void indexPages(SQLiteDatabase db) {
+			Cursor cursor = db.query(PAGE_TABLE, new String[] { KEY_ROWID,
+					KEY_NAME, KEY_TEXT, KEY_TEXT_Z }, null, null, null, null, null);
+			SQLiteStatement insert = db.compileStatement(FTS_INSERT);
+			try {
+				for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+					insert.bindLong(1, cursor.getLong(0));
+					insert.bindString(2, cursor.getString(1));
+					insert.bindString(3, cursor.isNull(3) ? cursor.getString(2)
+							: PageCompression.inflate(cursor.getBlob(3)));
+					insert.executeInsert();
+				}
+			} finally {
+				insert.close();
+				cursor.close();
+			}
+		}
+
+		/**
+		 * Hashes all page bodies. A page without local changes gets its
+		 * body hash as synced hash, too.
+		 */
+		private void hashPages(SQLiteDatabase db) {
+			Cursor cursor = db.query(PAGE_TABLE, new String[] { KEY_ROWID,
+					KEY_TEXT, KEY_TEXT_Z, KEY_CHANGED_AT, KEY_SYNCED_AT },
+					null, null, null, null, null);
+			SQLiteStatement update = db.compileStatement("UPDATE "
+					+ PAGE_TABLE + " SET " + KEY_BODY_HASH + "=?, "
+					+ KEY_SYNCED_HASH + "=? WHERE " + KEY_ROWID + "=?");
+			try {
+				for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+					String body = cursor.isNull(2) ? cursor.getString(1)
+							: PageCompression.inflate(cursor.getBlob(2));
+					String hash = ContentHash.of(body);
+					update.bindString(1, hash);
+					if (cursor.getLong(3) <= cursor.getLong(4)) {
+						update.bindString(2, hash);
+					} else {
+						update.bindNull(2);
+					}
+					update.bindLong(3, cursor.getLong(0));
+					update.execute();
+				}
+			} finally {
+				update.close();
+				cursor.close();
+			}
+		}
+
+		/**
+		 * Compresses the bodies of all long pages and logs the space saved
+		 * and the time it takes to read them back.
+		 */
+		private void compressPages(SQLiteDatabase db) {
+			long plainBytes = 0L;
+			long compressedBytes = 0L;
+			long inflateNanos = 0L;
+			int count = 0;
+			Cursor cursor = db.query(PAGE_TABLE, new String[] { KEY_ROWID,
+					KEY_TEXT }, "length(" + KEY_TEXT + ")>="
+					+ PageCompression.THRESHOLD, null, null, null, null);
+			SQLiteStatement update = db.compileStatement("UPDATE "
+					+ PAGE_TABLE + " SET " + KEY_TEXT + "='', " + KEY_TEXT_Z
+					+ "=? WHERE " + KEY_ROWID + "=?");
+			try {
+				for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+					String text = cursor.getString(1);
+					byte[] compressed = PageCompression.deflate(text);
+					if (compressed == null) {
+						continue;
+					}
+					long start = System.nanoTime();
+					PageCompression.inflate(compressed);
+					inflateNanos += System.nanoTime() - start;
+					plainBytes += text.length();
+					compressedBytes += compressed.length;
+					count++;
+					update.bindBlob(1, compressed);
+					update.bindLong(2, cursor.getLong(0));
+					update.execute();
+				}
+			} finally {
+				update.close();
+				cursor.close();
+			}
+			Log.i(TAG, "compressed " + count + " pages: " + plainBytes
+					+ " chars -> " + compressedBytes + " bytes, inflating took "
+					+ (inflateNanos / 1000L) + " us");
 		}
 	}
 
-	private DatabaseHelper mDbHelper;
+	/**
+	 * the one connection of the process, shared by all controllers and
+	 * closed when the last one is closed; guarded by the class
+	 */
+	private static DatabaseHelper sDbHelper = null;
+	private static SQLiteDatabase sDb = null;
+	private static int sOpenCount = 0;
+	/** SQLiteDatabase.beginTransactionNonExclusive(), Android 3.0 and later */
+	private static final Method sBeginNonExclusive = getBeginNonExclusive();
+
 	private SQLiteDatabase mDb;
+	/** read on every write, the setting may change while the controller is open */
+	private SharedPreferences mPrefs;
+	private SQLiteStatement mInsertPage = null;
+	private SQLiteStatement mUpdatePage = null;
+	private SQLiteStatement mQueueInsert = null;
+	private SQLiteStatement mQueueDelete = null;
+	private SQLiteStatement mQueueAttempts = null;
+	private SQLiteStatement mQueueFail = null;
+	private SQLiteStatement mFtsInsert = null;
+	private SQLiteStatement mFtsDelete = null;
+	private SQLiteStatement mNamespaceInsert = null;
+	private SQLiteStatement mNamespaceCount = null;
+	/** older SQLite versions only have offsets() to rank search hits */
+	private boolean mHasMatchinfo = true;
+	private int mBatchWrites = 0;
+	/** when the transaction of the sync batch began, 0 if none is open */
+	private long mBatchStartedAt = 0L;
+	/** pages written in the batch since the last commit, to remove from the cache */
+	private final List<Long> mBatchPageIds = new ArrayList<Long>();
+	private SyncMetrics mMetrics = null;
 
 	private final Context mCtx;
 
@@ -91,51 +511,161 @@ public class DatabaseController {
 		this.mCtx = ctx;
 	}
 
+	/**
+	 * Opens the shared database connection, or only takes a reference to it
+	 * if it is open already. Each controller has its own sync batch, but
+	 * one transaction at a time runs on the connection.
+	 */
 	public DatabaseController open() throws SQLException {
-		mDbHelper = new DatabaseHelper(mCtx);
-		mDb = mDbHelper.getWritableDatabase();
+		synchronized (DatabaseController.class) {
+			if (sDb == null) {
+				sDbHelper = new DatabaseHelper(mCtx.getApplicationContext());
+				sDb = sDbHelper.getWritableDatabase();
+				enableWriteAheadLogging(sDb);
+			}
+			sOpenCount++;
+			mDb = sDb;
+		}
+		mPrefs = PreferenceManager.getDefaultSharedPreferences(mCtx);
 		return this;
 	}
 
+	private boolean isCompressing() {
+		return mPrefs.getBoolean(PrefsActivity.PREF_COMPRESS_PAGES, true);
+	}
+
+	private boolean isIndexingBodies() {
+		return mPrefs.getBoolean(PrefsActivity.PREF_INDEX_BODIES, true);
+	}
+
+	/** the text of a body written to the full-text index */
+	private String indexedBody(String body) {
+		return isIndexingBodies() ? body : "";
+	}
+
 	public void close() {
-		mDbHelper.close();
+		synchronized (DatabaseController.class) {
+			if (mDb == null) {
+				return;
+			}
+			mDb = null;
+			if (--sOpenCount == 0) {
+				sDbHelper.close();
+				sDbHelper = null;
+				sDb = null;
+			}
+		}
 	}
 
-	public long createPage(WikiPage page) {
-		ContentValues initialValues = new ContentValues();
-		initialValues.put(KEY_NAME, page.name);
-		initialValues.put(KEY_TEXT, page.body);
-		initialValues.put(
-				KEY_CHANGED_AT,
-				page.localChangedAt == null ? 0L : page.localChangedAt
-						.getTime());
-		initialValues.put(
-				KEY_REMOTE_CHANGED_AT,
-				page.remoteChangedAt == null ? 0L : page.remoteChangedAt
-						.getTime());
-		initialValues.put(KEY_SYNCED_AT, page.syncedAt == null ? 0L
-				: page.syncedAt.getTime());
+	/**
+	 * Lets readers on other threads go on while a sync transaction is open,
+	 * instead of waiting for its commit. Write-ahead logging needs Android
+	 * 3.0, which is not in the SDK this is built against.
+	 */
+	private static void enableWriteAheadLogging(SQLiteDatabase db) {
+		if (Build.VERSION.SDK_INT < 11) {
+			return;
+		}
+		try {
+			Method enable = SQLiteDatabase.class.getMethod("enableWriteAheadLogging");
+			boolean enabled = (Boolean) enable.invoke(db);
+			Log.i(TAG, "write-ahead logging " + (enabled ? "enabled" : "not available"));
+		} catch (Exception e) {
+			Log.w(TAG, "write-ahead logging not enabled: " + e.getMessage());
+		}
+	}
 
-		return mDb.insert(PAGE_TABLE, null, initialValues);
+	private static Method getBeginNonExclusive() {
+		if (Build.VERSION.SDK_INT < 11) {
+			return null;
+		}
+		try {
+			return SQLiteDatabase.class.getMethod("beginTransactionNonExclusive");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
 	}
 
-	public boolean deletePage(long rowId) {
-		return mDb.delete(PAGE_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+	/**
+	 * Begins an immediate transaction where Android has it, readers on the
+	 * other connections of the write-ahead log go on meanwhile. Older
+	 * versions only have exclusive transactions.
+	 */
+	private void beginTransaction() {
+		if (sBeginNonExclusive != null) {
+			try {
+				sBeginNonExclusive.invoke(mDb);
+				return;
+			} catch (InvocationTargetException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new SQLException(e.getCause().toString());
+			} catch (IllegalAccessException e) {
+				Log.w(TAG, "no immediate transaction: " + e.getMessage());
+			}
+		}
+		mDb.beginTransaction();
 	}
 
-	public Cursor fetchAllPages() {
-		return mDb.query(PAGE_TABLE, PAGE_TABLE_COLS, null, null, null, null, null);
+	/**
+	 * Loads the names and row ids of all pages in one query.
+	 */
+	public PageNameIndex loadPageNameIndex() {
+		Cursor cursor = mDb.query(PAGE_TABLE, PAGE_LIST_COLS, null, null,
+				null, null, KEY_NAME);
+		try {
+			final int count = cursor.getCount();
+			String[] names = new String[count];
+			long[] ids = new long[count];
+			int i = 0;
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+				ids[i] = cursor.getLong(0);
+				names[i] = cursor.getString(1);
+				i++;
+			}
+			return new PageNameIndex(names, ids);
+		} finally {
+			cursor.close();
+		}
 	}
 
-	public WikiPage findPageByName(String pageName) {
-		WikiPage result = null;
-		Cursor cursor = mDb.query(true, PAGE_TABLE, PAGE_TABLE_COLS, KEY_NAME
-				+ "=?", new String[] { pageName }, null, null, null, null);
+	/**
+	 * Loads the row id and timestamps of all pages in one query.
+	 */
+	public PageSnapshot loadPageSnapshot() {
+		Cursor cursor = mDb.query(PAGE_TABLE, PAGE_SNAPSHOT_COLS, null, null,
+				null, null, KEY_NAME);
+		try {
+			final int count = cursor.getCount();
+			String[] names = new String[count];
+			long[] values = new long[count * 4];
+			int i = 0;
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+				names[i] = cursor.getString(0);
+				for (int col = 0; col < 4; col++) {
+					values[i * 4 + col] = cursor.getLong(col + 1);
+				}
+				i++;
+			}
+			return new PageSnapshot(names, values);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Finds all pages with local changes which have not been synced yet.
+	 */
+	public List<WikiPage> findLocallyChangedPages() {
+		List<WikiPage> result = new ArrayList<WikiPage>();
+		Cursor cursor = mDb.query(PAGE_TABLE, PAGE_TABLE_COLS, KEY_CHANGED_AT
+				+ ">" + KEY_SYNCED_AT, null, null, null, null);
 		if (cursor != null) {
-			cursor.moveToFirst();
-			if (!cursor.isAfterLast()) {
-				result = new WikiPage();
-				loadPage(result, cursor);
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+				WikiPage page = new WikiPage();
+				loadPage(page, cursor);
+				result.add(page);
 			}
 			cursor.close();
 		}
@@ -157,41 +687,738 @@ public class DatabaseController {
 		return result;
 	}
 
+	/**
+	 * Loads the name and body hash of a page, without its body.
+	 *
+	 * @return the page or <code>null</code> if it doesn't exist
+	 */
+	public WikiPage getPageInfo(long rowId) {
+		WikiPage result = null;
+		Cursor cursor = mDb.query(PAGE_TABLE, PAGE_INFO_COLS, KEY_ROWID + "=" + rowId,
+				null, null, null, null);
+		try {
+			if (cursor.moveToFirst()) {
+				result = new WikiPage();
+				result.id = rowId;
+				result.name = cursor.getString(0);
+				result.bodyHash = cursor.getString(1);
+			}
+		} finally {
+			cursor.close();
+		}
+		return result;
+	}
+
+	/**
+	 * @return the row id of the page or -1 if it doesn't exist
+	 */
+	public long findPageId(String name) {
+		SQLiteStatement statement = mDb.compileStatement("SELECT " + KEY_ROWID + " FROM "
+				+ PAGE_TABLE + " WHERE " + KEY_NAME + "=?");
+		try {
+			statement.bindString(1, name);
+			return statement.simpleQueryForLong();
+		} catch (SQLiteDoneException e) {
+			return -1L;
+		} finally {
+			statement.close();
+		}
+	}
+
 	private void loadPage(WikiPage page, Cursor cursor) {
 		page.id = cursor.getLong(cursor.getColumnIndex(KEY_ROWID));
 		page.name = cursor.getString(cursor.getColumnIndex(KEY_NAME));
-		page.body = cursor.getString(cursor.getColumnIndex(KEY_TEXT));
+		final int compressedIndex = cursor.getColumnIndex(KEY_TEXT_Z);
+		if (cursor.isNull(compressedIndex)) {
+			page.setBody(cursor.getString(cursor.getColumnIndex(KEY_TEXT)));
+		} else {
+			// inflated by WikiPage.getBody() when needed
+			page.body = null;
+			page.compressedBody = cursor.getBlob(compressedIndex);
+		}
 		page.localChangedAt = new Date(cursor.getLong(cursor
 				.getColumnIndex(KEY_CHANGED_AT)));
 		page.remoteChangedAt = new Date(cursor.getLong(cursor
 				.getColumnIndex(KEY_REMOTE_CHANGED_AT)));
 		page.syncedAt = new Date(cursor.getLong(cursor
 				.getColumnIndex(KEY_SYNCED_AT)));
+		page.bodyHash = cursor.getString(cursor.getColumnIndex(KEY_BODY_HASH));
+		page.syncedHash = cursor.getString(cursor.getColumnIndex(KEY_SYNCED_HASH));
+	}
+
+	/**
+	 * Loads the body the local changes of a page are based on.
+	 *
+	 * @return the base body or <code>null</code> if it is not known
+	 */
+	public String getBaseBody(long rowId) {
+		Cursor cursor = mDb.query(PAGE_TABLE, new String[] { KEY_BASE_TEXT,
+				KEY_BASE_TEXT_Z }, KEY_ROWID + "=" + rowId, null, null, null, null);
+		try {
+			if (!cursor.moveToFirst()) {
+				return null;
+			}
+			return cursor.isNull(1) ? cursor.getString(0)
+					: PageCompression.inflate(cursor.getBlob(1));
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Writes a page to the full-text index, within the transaction the page
+	 * itself is written in.
+	 */
+	private void indexPage(long rowId, String name, String body, boolean isNew) {
+		final boolean batch = isSyncBatchActive();
+		SQLiteStatement insert = batch ? mFtsInsert : mDb.compileStatement(FTS_INSERT);
+		SQLiteStatement delete = batch ? mFtsDelete : mDb.compileStatement(FTS_DELETE);
+		try {
+			if (!isNew) {
+				// replaced rather than updated, a page missing from the index
+				// is added again this way
+				delete.bindLong(1, rowId);
+				delete.execute();
+			}
+			insert.bindLong(1, rowId);
+			insert.bindString(2, name);
+			insert.bindString(3, indexedBody(body));
+			insert.executeInsert();
+		} finally {
+			if (!batch) {
+				insert.close();
+				delete.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes all bodies to the full-text index, or removes them from it,
+	 * after indexing them has been turned on or off. Takes a while, it
+	 * should run in the background.
+	 */
+	public void reindexBodies() {
+		final boolean indexing = isIndexingBodies();
+		beginTransaction();
+		try {
+			if (indexing) {
+				Cursor cursor = mDb.query(PAGE_TABLE, new String[] { KEY_ROWID,
+						KEY_TEXT, KEY_TEXT_Z }, null, null, null, null, null);
+				SQLiteStatement index = mDb.compileStatement(FTS_BODY_UPDATE);
+				try {
+					for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+						index.bindString(1, cursor.isNull(2) ? cursor.getString(1)
+								: PageCompression.inflate(cursor.getBlob(2)));
+						index.bindLong(2, cursor.getLong(0));
+						index.execute();
+					}
+				} finally {
+					index.close();
+					cursor.close();
+				}
+			} else {
+				mDb.execSQL("UPDATE " + FTS_TABLE + " SET " + KEY_TEXT + "=''");
+				try {
+					// merges the index, dropping what the bodies left in it
+					mDb.execSQL("INSERT INTO " + FTS_TABLE + " (" + FTS_TABLE
+							+ ") VALUES ('optimize')");
+				} catch (SQLiteException e) {
+					Log.i(TAG, "no optimize command, the index is merged later");
+				}
+			}
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+		if (!indexing) {
+			try {
+				// gives the room back, SQLite only reuses it otherwise
+				mDb.execSQL("VACUUM");
+			} catch (SQLiteException e) {
+				Log.w(TAG, "could not vacuum after dropping the body index", e);
+			}
+		}
+	}
+
+	/**
+	 * Counts a page added to or deleted from a namespace, within the
+	 * transaction the page itself is written in.
+	 */
+	private void countPage(String namespace, int delta) {
+		final boolean batch = isSyncBatchActive();
+		SQLiteStatement insert = batch ? mNamespaceInsert : mDb.compileStatement(NAMESPACE_INSERT);
+		SQLiteStatement count = batch ? mNamespaceCount : mDb.compileStatement(NAMESPACE_COUNT);
+		try {
+			countPages(insert, count, namespace, delta);
+		} finally {
+			if (!batch) {
+				insert.close();
+				count.close();
+			}
+		}
+		if (delta < 0) {
+			mDb.delete(NAMESPACE_TABLE, KEY_TOTAL + "<=0", null);
+		}
 	}
 
-	public boolean updatePage(WikiPage page) {
-		ContentValues args = new ContentValues();
-		args.put(KEY_NAME, page.name);
-		args.put(KEY_TEXT, page.body);
-		args.put(KEY_CHANGED_AT, page.localChangedAt.getTime());
-		args.put(KEY_REMOTE_CHANGED_AT, page.remoteChangedAt.getTime());
-		args.put(KEY_SYNCED_AT, page.syncedAt.getTime());
+	/**
+	 * Adds pages to the counts of a namespace and all its ancestors, which
+	 * are created if needed.
+	 */
+	private static void countPages(SQLiteStatement insert, SQLiteStatement count,
+			String namespace, long delta) {
+		if (namespace.length() == 0) {
+			// the root namespace has no row
+			return;
+		}
+		int separator = -1;
+		do {
+			separator = namespace.indexOf(WikiPage.NAMESPACE_SEPARATOR, separator + 1);
+			String ancestor = (separator < 0) ? namespace : namespace.substring(0, separator);
+			if (delta > 0) {
+				insert.bindString(1, ancestor);
+				insert.bindString(2, WikiPage.getNamespace(ancestor));
+				insert.executeInsert();
+			}
+			count.bindLong(1, delta);
+			count.bindString(2, namespace);
+			count.bindString(3, ancestor);
+			count.execute();
+		} while (separator >= 0);
+	}
 
-		return mDb.update(PAGE_TABLE, args, KEY_ROWID + "=" + page.id, null) > 0;
+	/**
+	 * Fetches the direct children of a namespace: its sub-namespaces with
+	 * their page count first, then its pages, each sorted by name. Both
+	 * come straight from an index.
+	 *
+	 * @param namespace
+	 *            <code>""</code> for the root namespace
+	 * @return a cursor with the columns {@link #NAMESPACE_CHILD_COLS}; the
+	 *         total is <code>null</code> for pages
+	 */
+	public Cursor fetchNamespaceChildren(String namespace) {
+		String[] args = new String[] { namespace };
+		Cursor namespaces = mDb.rawQuery("SELECT " + KEY_ROWID + ", " + KEY_NAME
+				+ ", " + KEY_TOTAL + ", 1 AS " + KEY_IS_NAMESPACE + " FROM "
+				+ NAMESPACE_TABLE + " WHERE " + KEY_PARENT + "=? ORDER BY "
+				+ KEY_NAME, args);
+		Cursor pages = mDb.rawQuery("SELECT " + KEY_ROWID + ", " + KEY_NAME
+				+ ", NULL AS " + KEY_TOTAL + ", 0 AS " + KEY_IS_NAMESPACE + " FROM "
+				+ PAGE_TABLE + " WHERE " + KEY_NAMESPACE + "=? ORDER BY "
+				+ KEY_NAME, args);
+		return new MergeCursor(new Cursor[] { namespaces, pages });
 	}
 
-	public void updatePageBody(Long rowId, String body) {
-		WikiPage page = getPage(rowId);
-		page.body = body;
-		page.localChangedAt = new Date();
-		updatePage(page);
+	/**
+	 * Searches the page names and bodies. All words of the query have to
+	 * match, the last one as prefix.
+	 * <p>
+	 * All hits are ranked first, that only needs the index. The snippets,
+	 * which need the page bodies, are only made for the best ones.
+	 *
+	 * @return the best hits, best first, with the columns
+	 *         {@link #SEARCH_COLS}; the matched terms of the snippet are
+	 *         enclosed in {@link SearchQuery#MATCH_START} and
+	 *         {@link SearchQuery#MATCH_END}
+	 */
+	public Cursor search(String query, int limit) {
+		MatrixCursor result = new MatrixCursor(SEARCH_COLS, limit);
+		String match = SearchQuery.toMatchExpression(query);
+		if (match == null) {
+			return result;
+		}
+		// the best hits so far, the worst one on top
+		PriorityQueue<SearchHit> best = new PriorityQueue<SearchHit>(limit + 1);
+		Cursor hits = queryHits(match);
+		try {
+			for (hits.moveToFirst(); !hits.isAfterLast(); hits.moveToNext()) {
+				SearchHit hit = new SearchHit();
+				hit.id = hits.getLong(0);
+				hit.score = mHasMatchinfo ? SearchQuery.scoreMatchinfo(hits.getBlob(1))
+						: SearchQuery.scoreOffsets(hits.getString(1));
+				best.add(hit);
+				if (best.size() > limit) {
+					best.poll();
+				}
+			}
+		} finally {
+			hits.close();
+		}
+		if (best.isEmpty()) {
+			return result;
+		}
+		SearchHit[] ranked = new SearchHit[best.size()];
+		StringBuilder ids = new StringBuilder();
+		for (int i = ranked.length - 1; i >= 0; i--) {
+			ranked[i] = best.poll();
+			ids.append(i == ranked.length - 1 ? "" : ",").append(ranked[i].id);
+		}
+		Map<Long, String[]> rows = new HashMap<Long, String[]>();
+		Cursor snippets = mDb.rawQuery("SELECT docid, " + KEY_NAME + ", snippet("
+				+ FTS_TABLE + ", ?, ?, ?) FROM " + FTS_TABLE + " WHERE " + FTS_TABLE
+				+ " MATCH ? AND docid IN (" + ids + ")", new String[] {
+				String.valueOf(SearchQuery.MATCH_START),
+				String.valueOf(SearchQuery.MATCH_END), SearchQuery.ELLIPSIS, match });
+		try {
+			for (snippets.moveToFirst(); !snippets.isAfterLast(); snippets.moveToNext()) {
+				rows.put(snippets.getLong(0), new String[] { snippets.getString(1),
+						snippets.getString(2) });
+			}
+		} finally {
+			snippets.close();
+		}
+		for (SearchHit hit : ranked) {
+			String[] row = rows.get(hit.id);
+			if (row != null) {
+				result.addRow(new Object[] { hit.id, row[0], row[1] });
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Finds the row ids of all hits with their <code>matchinfo()</code>, or
+	 * <code>offsets()</code> if that's not available.
+	 */
+	private Cursor queryHits(String match) {
+		String[] args = new String[] { match };
+		if (mHasMatchinfo) {
+			try {
+				return mDb.rawQuery("SELECT docid, matchinfo(" + FTS_TABLE + ") FROM "
+						+ FTS_TABLE + " WHERE " + FTS_TABLE + " MATCH ?", args);
+			} catch (SQLiteException e) {
+				Log.i(TAG, "no matchinfo(), ranking with offsets()");
+				mHasMatchinfo = false;
+			}
+		}
+		return mDb.rawQuery("SELECT docid, offsets(" + FTS_TABLE + ") FROM "
+				+ FTS_TABLE + " WHERE " + FTS_TABLE + " MATCH ?", args);
+	}
+
+	private static class SearchHit implements Comparable<SearchHit> {
+		long id;
+		float score;
+
+		@Override
+		public int compareTo(SearchHit other) {
+			return (score < other.score) ? -1 : ((score > other.score) ? 1 : 0);
+		}
+	}
+
+	/**
+	 * Starts a sync batch. Pages written with {@link #writePage(WikiPage)}
+	 * until {@link #commitSyncBatch()} reuse the same compiled statements and
+	 * share a transaction, which is begun by the first write and committed
+	 * after {@link #SYNC_BATCH_COMMIT_SIZE} writes, after
+	 * {@link #SYNC_BATCH_MAX_NANOS} or by {@link #checkpointSyncBatch()}.
+	 */
+	public void beginSyncBatch() {
+		mInsertPage = mDb.compileStatement(PAGE_INSERT);
+		mUpdatePage = mDb.compileStatement(PAGE_UPDATE);
+		mQueueInsert = mDb.compileStatement(QUEUE_INSERT);
+		mQueueDelete = mDb.compileStatement(QUEUE_DELETE);
+		mQueueAttempts = mDb.compileStatement(QUEUE_ATTEMPTS);
+		mQueueFail = mDb.compileStatement(QUEUE_FAIL);
+		mFtsInsert = mDb.compileStatement(FTS_INSERT);
+		mFtsDelete = mDb.compileStatement(FTS_DELETE);
+		mNamespaceInsert = mDb.compileStatement(NAMESPACE_INSERT);
+		mNamespaceCount = mDb.compileStatement(NAMESPACE_COUNT);
+		mBatchWrites = 0;
+		mBatchPageIds.clear();
+	}
+
+	/**
+	 * Queues a page within the current sync batch.
+	 */
+	public void queueSyncJob(String name, int action, Date remoteChangedAt) {
+		beginBatchWrite();
+		mQueueInsert.bindString(1, name);
+		mQueueInsert.bindLong(2, action);
+		mQueueInsert.bindLong(3, getTime(remoteChangedAt));
+		mQueueInsert.execute();
+		countBatchWrite();
+	}
+
+	/**
+	 * Removes a page from the sync queue within the current sync batch, it
+	 * is written in the same transaction as the page itself.
+	 */
+	public void finishSyncJob(String name) {
+		beginBatchWrite();
+		mQueueDelete.bindString(1, name);
+		mQueueDelete.execute();
+		countBatchWrite();
+	}
+
+	/**
+	 * Counts a failed attempt of a queued page and defers its next attempt.
+	 *
+	 * @return the number of failed attempts
+	 */
+	public int failSyncJob(String name, Backoff backoff) {
+		beginBatchWrite();
+		mQueueAttempts.bindString(1, name);
+		int attempts;
+		try {
+			attempts = (int) mQueueAttempts.simpleQueryForLong() + 1;
+		} catch (SQLiteDoneException e) {
+			// not queued
+			return 0;
+		}
+		mQueueFail.bindLong(1, attempts);
+		mQueueFail.bindLong(2, System.currentTimeMillis() + backoff.getDelay(attempts));
+		mQueueFail.bindString(3, name);
+		mQueueFail.execute();
+		countBatchWrite();
+		return attempts;
+	}
+
+	/**
+	 * @return the earliest time a deferred page of the sync queue is due, or
+	 *         0 if the queue is empty
+	 */
+	public long getNextSyncAttempt() {
+		SQLiteStatement next = mDb.compileStatement("SELECT COALESCE(MIN("
+				+ KEY_NEXT_ATTEMPT_AT + "), 0) FROM " + QUEUE_TABLE);
+		try {
+			return next.simpleQueryForLong();
+		} finally {
+			next.close();
+		}
+	}
+
+	/**
+	 * Loads the sync queue left over from an interrupted or failed sync.
+	 */
+	public List<SyncJob> loadSyncQueue() {
+		List<SyncJob> result = new ArrayList<SyncJob>();
+		Cursor cursor = mDb.query(QUEUE_TABLE, QUEUE_TABLE_COLS, null, null,
+				null, null, KEY_ROWID);
+		try {
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+				SyncJob job = new SyncJob();
+				job.name = cursor.getString(0);
+				job.action = cursor.getInt(1);
+				job.remoteChangedAt = new Date(cursor.getLong(2));
+				job.attempts = cursor.getInt(3);
+				job.nextAttemptAt = cursor.getLong(4);
+				result.add(job);
+			}
+		} finally {
+			cursor.close();
+		}
+		return result;
+	}
+
+	public long getSyncQueueSize() {
+		SQLiteStatement count = mDb.compileStatement("SELECT COUNT(*) FROM " + QUEUE_TABLE);
+		try {
+			return count.simpleQueryForLong();
+		} finally {
+			count.close();
+		}
+	}
+
+	public void clearSyncQueue() {
+		mDb.delete(QUEUE_TABLE, null, null);
+	}
+
+	/**
+	 * Inserts or updates a page within the current sync batch. A new page
+	 * gets its row id assigned. The merge base is replaced by the page's
+	 * {@link WikiPage#baseBody}, so it is dropped once a page is synced.
+	 */
+	public void writePage(WikiPage page) {
+		final long start = System.nanoTime();
+		beginBatchWrite();
+		final boolean isNew = (page.id == 0);
+		SQLiteStatement statement = isNew ? mInsertPage : mUpdatePage;
+		String body = page.getBody();
+		final boolean compress = isCompressing();
+		byte[] compressed = compress ? PageCompression.deflate(body) : null;
+		statement.bindString(1, page.name);
+		if (compressed == null) {
+			statement.bindString(2, body);
+			statement.bindNull(3);
+		} else {
+			statement.bindString(2, "");
+			statement.bindBlob(3, compressed);
+		}
+		statement.bindLong(4, getTime(page.localChangedAt));
+		statement.bindLong(5, getTime(page.remoteChangedAt));
+		statement.bindLong(6, getTime(page.syncedAt));
+		page.bodyHash = ContentHash.of(body);
+		statement.bindString(7, page.bodyHash);
+		if (page.syncedHash == null) {
+			statement.bindNull(8);
+		} else {
+			statement.bindString(8, page.syncedHash);
+		}
+		byte[] compressedBase = compress ? PageCompression.deflate(page.baseBody) : null;
+		if (compressedBase != null) {
+			statement.bindNull(9);
+			statement.bindBlob(10, compressedBase);
+		} else {
+			if (page.baseBody == null) {
+				statement.bindNull(9);
+			} else {
+				statement.bindString(9, page.baseBody);
+			}
+			statement.bindNull(10);
+		}
+		if (isNew) {
+			statement.bindString(11, WikiPage.getNamespace(page.name));
+			page.id = statement.executeInsert();
+			countPage(WikiPage.getNamespace(page.name), 1);
+		} else {
+			statement.bindLong(11, page.id);
+			statement.execute();
+		}
+		indexPage(page.id, page.name, body, isNew);
+		if (!isNew) {
+			mBatchPageIds.add(page.id);
+		}
+		if (mMetrics != null) {
+			mMetrics.recordDbWrite(System.nanoTime() - start);
+		}
+		countBatchWrite();
+	}
+
+	private void beginBatchWrite() {
+		if (mBatchStartedAt == 0L) {
+			beginTransaction();
+			mBatchStartedAt = System.nanoTime();
+		}
+	}
+
+	private void countBatchWrite() {
+		if ((++mBatchWrites >= SYNC_BATCH_COMMIT_SIZE)
+				|| (System.nanoTime() - mBatchStartedAt >= SYNC_BATCH_MAX_NANOS)) {
+			checkpointSyncBatch();
+		}
+	}
+
+	/**
+	 * Commits what has been written in the current sync batch so far, it
+	 * survives if the sync is killed. The batch goes on. Called before the
+	 * sync waits for the network, so no transaction is held meanwhile.
+	 */
+	public void checkpointSyncBatch() {
+		if (mBatchStartedAt == 0L) {
+			return;
+		}
+		commitTransaction();
+		mBatchWrites = 0;
+	}
+
+	private void commitTransaction() {
+		final long start = System.nanoTime();
+		mBatchStartedAt = 0L;
+		mDb.setTransactionSuccessful();
+		mDb.endTransaction();
+		if (mMetrics != null) {
+			mMetrics.recordDbCommit(System.nanoTime() - start);
+		}
+		// a page loaded before the commit could be cached with its old body
+		PageCache cache = PageCache.getInstance();
+		for (Long rowId : mBatchPageIds) {
+			cache.remove(rowId);
+		}
+		mBatchPageIds.clear();
+	}
+
+	/**
+	 * Sets the metrics sync writes and commits are recorded in,
+	 * <code>null</code> to stop recording.
+	 */
+	public void setMetrics(SyncMetrics metrics) {
+		mMetrics = metrics;
+	}
+
+	public void writePages(Collection<WikiPage> pages) {
+		for (WikiPage page : pages) {
+			writePage(page);
+		}
+	}
+
+	/**
+	 * Commits the pages written since {@link #beginSyncBatch()} and ends the
+	 * batch.
+	 */
+	public void commitSyncBatch() {
+		try {
+			checkpointSyncBatch();
+		} finally {
+			mInsertPage.close();
+			mUpdatePage.close();
+			mQueueInsert.close();
+			mQueueDelete.close();
+			mQueueAttempts.close();
+			mQueueFail.close();
+			mFtsInsert.close();
+			mFtsDelete.close();
+			mNamespaceInsert.close();
+			mNamespaceCount.close();
+			mInsertPage = null;
+			mUpdatePage = null;
+			mQueueInsert = null;
+			mQueueDelete = null;
+			mQueueAttempts = null;
+			mQueueFail = null;
+			mFtsInsert = null;
+			mFtsDelete = null;
+			mNamespaceInsert = null;
+			mNamespaceCount = null;
+		}
+	}
+
+	public boolean isSyncBatchActive() {
+		return mInsertPage != null;
+	}
+
+	private static long getTime(Date date) {
+		return date == null ? 0L : date.getTime();
+	}
+
+	/**
+	 * Saves an edited body with a single update of the body, its hash and
+	 * the change time, without reading the page first. Nothing is written if
+	 * the body didn't change, and a body edited back to the last synced
+	 * version is not dirty. The first edit after a sync keeps the synced
+	 * body as merge base.
+	 *
+	 * @param baseHash
+	 *            the hash of the body the edit is based on, nothing is
+	 *            written if a sync replaced it meanwhile; <code>null</code>
+	 *            if it is not known
+	 * @return <code>true</code> if the body was written
+	 */
+	public boolean updatePageBody(long rowId, String baseHash, String body) {
+		byte[] compressed = isCompressing() ? PageCompression.deflate(body) : null;
+		SQLiteStatement update = mDb.compileStatement(PAGE_BODY_UPDATE);
+		SQLiteStatement changes = mDb.compileStatement("SELECT changes()");
+		beginTransaction();
+		try {
+			if (compressed == null) {
+				update.bindString(1, body);
+				update.bindNull(2);
+			} else {
+				update.bindString(1, "");
+				update.bindBlob(2, compressed);
+			}
+			update.bindString(3, ContentHash.of(body));
+			update.bindLong(4, System.currentTimeMillis());
+			update.bindLong(5, rowId);
+			if (baseHash == null) {
+				update.bindNull(6);
+			} else {
+				update.bindString(6, baseHash);
+			}
+			update.execute();
+			boolean updated = changes.simpleQueryForLong() > 0;
+			if (updated) {
+				SQLiteStatement index = mDb.compileStatement(FTS_BODY_UPDATE);
+				try {
+					index.bindString(1, indexedBody(body));
+					index.bindLong(2, rowId);
+					index.execute();
+				} finally {
+					index.close();
+				}
+			}
+			mDb.setTransactionSuccessful();
+			return updated;
+		} finally {
+			mDb.endTransaction();
+			PageCache.getInstance().remove(rowId);
+			changes.close();
+			update.close();
+		}
 	}
 	
-	public long createLog(String text) {
-		ContentValues initialValues = new ContentValues();
-		initialValues.put(KEY_TEXT, text);
-		initialValues.put(KEY_CREATED_AT, new Date().getTime());
-		return mDb.insert(LOG_TABLE, null, initialValues);
+	/**
+	 * Creates the row of a new sync run, its id is the run id of its
+	 * events. Only the latest {@link #MAX_SYNC_RUNS} runs are kept.
+	 */
+	public long startSyncRun(long startedAt) {
+		ContentValues values = new ContentValues();
+		values.put(KEY_CREATED_AT, startedAt);
+		long runId = mDb.insert(SYNC_RUN_TABLE, null, values);
+		mDb.delete(SYNC_RUN_TABLE, KEY_ROWID + "<=" + (runId - MAX_SYNC_RUNS), null);
+		return runId;
+	}
+
+	/**
+	 * Stores the summary of a finished sync run.
+	 */
+	public void finishSyncRun(long runId, SyncMetrics metrics) {
+		ContentValues values = new ContentValues();
+		values.put(KEY_DURATION, metrics.getDuration());
+		values.put(KEY_DOWNLOADED, metrics.getActionCount(SyncEngine.ACTION_DOWNLOAD));
+		values.put(KEY_UPLOADED, metrics.getActionCount(SyncEngine.ACTION_UPLOAD));
+		values.put(KEY_MERGED, metrics.getActionCount(SyncEngine.ACTION_MERGE));
+		values.put(KEY_FAILED, metrics.getFailed());
+		values.put(KEY_REQUESTS, metrics.getRequests());
+		values.put(KEY_BYTES_SENT, metrics.getBytesSent());
+		values.put(KEY_BYTES_RECEIVED, metrics.getBytesReceived());
+		values.put(KEY_DB_TIME, metrics.getDbMillis());
+		values.put(KEY_TEXT, metrics.getSummary());
+		mDb.update(SYNC_RUN_TABLE, values, KEY_ROWID + "=" + runId, null);
+	}
+
+	/**
+	 * Fetches the latest finished sync runs, newest first.
+	 */
+	public Cursor fetchSyncRuns(int limit) {
+		return mDb.query(SYNC_RUN_TABLE, SYNC_RUN_TABLE_COLS, KEY_DURATION
+				+ " IS NOT NULL", null, null, null, KEY_ROWID + " DESC",
+				String.valueOf(limit));
+	}
+
+	/**
+	 * Writes a batch of events in one transaction.
+	 */
+	void writeEvents(long runId, EventLog.Event[] events, int count) {
+		SQLiteStatement insert = mDb.compileStatement(LOG_INSERT);
+		beginTransaction();
+		try {
+			for (int i = 0; i < count; i++) {
+				EventLog.Event event = events[i];
+				insert.bindString(1, event.text);
+				insert.bindLong(2, event.createdAt);
+				insert.bindLong(3, runId);
+				insert.bindLong(4, event.level);
+				if (event.page == null) {
+					insert.bindNull(5);
+				} else {
+					insert.bindString(5, event.page);
+				}
+				insert.executeInsert();
+			}
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+			insert.close();
+		}
+	}
+
+	/**
+	 * Deletes all but the newest events and the ones older than a given
+	 * time.
+	 */
+	public void pruneEvents(int maxEvents, long before) {
+		mDb.delete(LOG_TABLE, KEY_CREATED_AT + "<? OR " + KEY_ROWID + "<=(SELECT MAX("
+				+ KEY_ROWID + ") FROM " + LOG_TABLE + ")-?", new String[] {
+				String.valueOf(before), String.valueOf(maxEvents) });
+	}
+
+	/**
+	 * Fetches the events of a sync run in the order they were logged.
+	 */
+	public Cursor fetchEvents(long runId) {
+		return mDb.query(LOG_TABLE, LOG_TABLE_COLS, KEY_RUN_ID + "=" + runId,
+				null, null, null, KEY_ROWID);
 	}
 
 }
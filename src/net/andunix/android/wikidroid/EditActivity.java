@@ -17,24 +17,106 @@
 
 package net.andunix.android.wikidroid;
 
+import java.util.List;
+
 import net.andunix.android.BaseActivity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.os.Bundle;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.widget.EditText;
+import android.widget.Toast;
 
 public class EditActivity extends BaseActivity {
 
+	/** how long typing has to pause before the page is saved */
+	private static final long AUTOSAVE_DELAY = 2000L;
+	private static final int SECTIONS_ID = Menu.FIRST;
+	private static final String KEY_LOADED = "loaded";
+	private static final String KEY_SECTION_START = "section_start";
+	private static final String KEY_SECTION_TEXT = "section_text";
+	private static final String KEY_SECTION_TITLE = "section_title";
+	private static final String KEY_BASE_HASH = "base_hash";
+
     private EditText mBodyText;
     private Long mRowId;
-    private DatabaseController mDatabaseController;
+	private PageSaver mPageSaver;
+	private final Handler mHandler = new Handler();
+	/** the text differs from what was last handed to the saver */
+	private boolean mDirty = false;
+	/** set while the loaded body is put into the text field */
+	private boolean mLoading = false;
+	private boolean mLoaded = false;
+	/** set once destroyed, a load finishing later is ignored */
+	private boolean mDestroyed = false;
+	/**
+	 * the offset of the section of a large page being edited, -1 if the
+	 * whole page is
+	 */
+	private int mSectionStart = -1;
+	/** the section as loaded or saved last */
+	private String mSectionText = null;
+	/** what the text is based on, handed to the saver with it */
+	private PageSaver.Session mSession = null;
+	private AlertDialog mSectionDialog = null;
+
+	private final Runnable mAutosave = new Runnable() {
+		@Override
+		public void run() {
+			saveState();
+		}
+	};
+
+	/** goes on with the merge of a save with a sync's changes */
+	private final PageSaver.MergeListener mMergeListener = new PageSaver.MergeListener() {
+		@Override
+		public void onMerged(String merged, String from, int conflicts) {
+			String current = mBodyText.getText().toString();
+			if (!current.equals(from)) {
+				// typed on meanwhile
+				ThreeWayMerge.Result again = ThreeWayMerge.merge(from, current, merged);
+				merged = again.text;
+				conflicts += again.conflicts;
+			}
+			int selection = mBodyText.getSelectionStart();
+			mHandler.removeCallbacks(mAutosave);
+			showText(merged);
+			mBodyText.setSelection(Math.max(0, Math.min(selection, merged.length())));
+			mPageSaver.saveMerged(mRowId, mSession, merged);
+			mDirty = false;
+			Toast.makeText(EditActivity.this, (conflicts > 0) ? R.string.merged_conflicts
+					: R.string.merged, Toast.LENGTH_LONG).show();
+		}
+	};
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-		mDatabaseController = new DatabaseController(this).open();
+		mPageSaver = PageSaver.getInstance(this);
         setContentView(R.layout.edit);
         setTitle(R.string.edit_page);
 
         mBodyText = (EditText) findViewById(R.id.body);
+		mBodyText.addTextChangedListener(new TextWatcher() {
+			@Override
+			public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+			@Override
+			public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+			@Override
+			public void afterTextChanged(Editable s) {
+				if (!mLoading) {
+					mDirty = true;
+					mHandler.removeCallbacks(mAutosave);
+					mHandler.postDelayed(mAutosave, AUTOSAVE_DELAY);
+				}
+			}
+		});
 
         mRowId = (savedInstanceState == null) ? null :
             (Long) savedInstanceState.getSerializable(DatabaseController.KEY_ROWID);
@@ -44,21 +126,179 @@ public class EditActivity extends BaseActivity {
 									: null;
 		}
 
-		populateFields();
+		if ((savedInstanceState != null) && savedInstanceState.getBoolean(KEY_LOADED)) {
+			// the text field restores the text itself
+			mLoaded = true;
+			mSectionStart = savedInstanceState.getInt(KEY_SECTION_START, -1);
+			mSectionText = savedInstanceState.getString(KEY_SECTION_TEXT);
+			PageSaver.Session session = (PageSaver.Session) getLastNonConfigurationInstance();
+			if (session == null) {
+				// the merge base is gone with the process, only the hash is left
+				session = (mSectionStart >= 0)
+						? new PageSaver.Session(null, mSectionStart, mSectionText)
+						: new PageSaver.Session(savedInstanceState.getString(KEY_BASE_HASH), null);
+			}
+			// listened to once the text field has its text back
+			mSession = session;
+			if (mSectionStart >= 0) {
+				setTitle(savedInstanceState.getString(KEY_SECTION_TITLE));
+			}
+		} else {
+			populateFields();
+		}
     }
 
+	@Override
+	protected void onPostCreate(Bundle savedInstanceState) {
+		super.onPostCreate(savedInstanceState);
+		if (mSession != null) {
+			mSession.setMergeListener(mMergeListener);
+		}
+	}
+
+	@Override
+	protected void onDestroy() {
+		mDestroyed = true;
+		if (mSession != null) {
+			// a merge made meanwhile goes to the activity after a rotation
+			mSession.setMergeListener(null);
+		}
+		if (mSectionDialog != null) {
+			mSectionDialog.dismiss();
+		}
+		super.onDestroy();
+	}
+
     private void populateFields() {
         if (mRowId != null) {
-            WikiPage page = mDatabaseController.getPage(mRowId);
-            mBodyText.setText(page.body);
+			mBodyText.setEnabled(false);
+			mPageSaver.load(mRowId, new PageSaver.LoadCallback() {
+				@Override
+				public void onLoaded(WikiPage page, List<PageSections.Section> sections) {
+					if (mDestroyed || isFinishing()) {
+						// the activity recreated by a rotation loads it again
+						return;
+					}
+					if (page == null) {
+						mBodyText.setEnabled(true);
+					} else if (sections == null) {
+						setTitle(R.string.edit_page);
+						mSectionStart = -1;
+						mSectionText = null;
+						setSession(new PageSaver.Session(page.bodyHash, page.getBody()));
+						showText(page.getBody());
+					} else {
+						chooseSection(page, sections);
+					}
+				}
+			});
         }
     }
 
+	private void setSession(PageSaver.Session session) {
+		if (mSession != null) {
+			mSession.setMergeListener(null);
+		}
+		mSession = session;
+		session.setMergeListener(mMergeListener);
+	}
+
+	private void showText(String text) {
+		mLoading = true;
+		mBodyText.setText(text);
+		mLoading = false;
+		mLoaded = true;
+		mBodyText.setEnabled(true);
+	}
+
+	/**
+	 * Lets the user pick the section of a large page to edit, only that
+	 * section goes into the text field.
+	 */
+	private void chooseSection(final WikiPage page, final List<PageSections.Section> sections) {
+		final String[] titles = new String[sections.size()];
+		for (int i = 0; i < titles.length; i++) {
+			titles[i] = getSectionTitle(sections.get(i));
+		}
+		mSectionDialog = new AlertDialog.Builder(this)
+				.setTitle(R.string.choose_section)
+				.setItems(titles, new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						mSectionDialog = null;
+						PageSections.Section section = sections.get(which);
+						setTitle(titles[which]);
+						mSectionStart = section.start;
+						mSectionText = page.getBody().substring(section.start, section.end);
+						setSession(new PageSaver.Session(page.bodyHash, section.start, mSectionText));
+						showText(mSectionText);
+					}
+				})
+				.setOnCancelListener(new DialogInterface.OnCancelListener() {
+					@Override
+					public void onCancel(DialogInterface dialog) {
+						mSectionDialog = null;
+						if (mLoaded) {
+							// back to the section edited before
+							mBodyText.setEnabled(true);
+						} else {
+							finish();
+						}
+					}
+				})
+				.show();
+	}
+
+	private String getSectionTitle(PageSections.Section section) {
+		String title = (section.title == null) ? getString(R.string.section_top) : section.title;
+		return (section.part == 0) ? title : getString(R.string.section_part, title, section.part);
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		super.onCreateOptionsMenu(menu);
+		menu.add(0, SECTIONS_ID, 0, R.string.menu_sections);
+		return true;
+	}
+
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		super.onPrepareOptionsMenu(menu);
+		menu.findItem(SECTIONS_ID).setVisible(mSectionStart >= 0);
+		return true;
+	}
+
+	@Override
+	public boolean onMenuItemSelected(int featureId, MenuItem item) {
+		switch (item.getItemId()) {
+		case SECTIONS_ID:
+			saveState();
+			// loaded after the save, with the sections where they are now
+			populateFields();
+			return true;
+		}
+		return super.onMenuItemSelected(featureId, item);
+	}
+
+	@Override
+	public Object onRetainNonConfigurationInstance() {
+		// keeps the merge base across a rotation
+		return mSession;
+	}
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
         saveState();
         outState.putSerializable(DatabaseController.KEY_ROWID, mRowId);
+		outState.putBoolean(KEY_LOADED, mLoaded);
+		outState.putInt(KEY_SECTION_START, mSectionStart);
+		outState.putString(KEY_SECTION_TEXT, mSectionText);
+		outState.putString(KEY_SECTION_TITLE, String.valueOf(getTitle()));
+		if ((mSession != null) && (mSectionStart < 0)) {
+			// the text just handed to the saver is what the page is based on
+			outState.putString(KEY_BASE_HASH, ContentHash.of(mBodyText.getText().toString()));
+		}
     }
     
     @Override
@@ -67,22 +307,33 @@ public class EditActivity extends BaseActivity {
         saveState();
     }
     
-    @Override
-    protected void onResume() {
-        super.onResume();
-        populateFields();
-    }
-    
+	/**
+	 * Hands the text to the saver if it changed. Only copying the text
+	 * happens on this thread.
+	 */
     private void saveState() {
-        String body = mBodyText.getText().toString();
+		mHandler.removeCallbacks(mAutosave);
+		if (!mDirty) {
+			return;
+		}
         if (mRowId == null) {
         	// FIXME: create page
 //            long id = mDatabaseController.createNote(title, body);
 //            if (id > 0) {
 //                mRowId = id;
 //            }
+        } else if (mSectionStart >= 0) {
+			String edited = mBodyText.getText().toString();
+			mPageSaver.save(mRowId, mSession, edited);
+			mSectionText = edited;
+			mDirty = false;
         } else {
-            mDatabaseController.updatePageBody(mRowId, body);
+			if (mSession == null) {
+				// the page wasn't there when it was loaded
+				setSession(new PageSaver.Session(null, null));
+			}
+			mPageSaver.save(mRowId, mSession, mBodyText.getText().toString());
+			mDirty = false;
         }
     }
     
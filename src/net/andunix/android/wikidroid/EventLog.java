@@ -0,0 +1,118 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.andunix.android.wikidroid;
+
+/**
+ * Structured log of sync events, written to the database in batches.
+ * <p>
+ * Events go into a fixed size buffer of preallocated entries, which are
+ * reused for every batch, so logging costs a few field writes and no
+ * allocation. The buffer is written out in one transaction by
+ * {@link #flush()}, or when it is full. Old events are pruned
+ * from the database by count and age.
+ */
+public class EventLog {
+
+	public static final int LEVEL_INFO = 0;
+	public static final int LEVEL_WARNING = 1;
+	public static final int LEVEL_ERROR = 2;
+
+	private static final int CAPACITY = 128;
+	/** keep at most this many events in the database */
+	public static final int MAX_EVENTS = 10000;
+	/** and none older than this */
+	public static final long MAX_AGE = 30L * 24L * 60L * 60L * 1000L;
+
+	static class Event {
+		long createdAt;
+		int level;
+		String page;
+		String text;
+	}
+
+	private final DatabaseController mDatabase;
+	private final long mRunId;
+	private final Event[] mEvents = new Event[CAPACITY];
+	private int mCount = 0;
+
+	/**
+	 * @param runId
+	 *            the sync run the events belong to
+	 */
+	public EventLog(DatabaseController database, long runId) {
+		mDatabase = database;
+		mRunId = runId;
+		for (int i = 0; i < CAPACITY; i++) {
+			mEvents[i] = new Event();
+		}
+	}
+
+	public long getRunId() {
+		return mRunId;
+	}
+
+	public void info(String page, String text) {
+		log(LEVEL_INFO, page, text);
+	}
+
+	public void warning(String page, String text) {
+		log(LEVEL_WARNING, page, text);
+	}
+
+	public void error(String page, String text) {
+		log(LEVEL_ERROR, page, text);
+	}
+
+	/**
+	 * @param page
+	 *            the page the event is about, <code>null</code> for the run
+	 */
+	public synchronized void log(int level, String page, String text) {
+		if (mCount == CAPACITY) {
+			flush();
+		}
+		Event event = mEvents[mCount++];
+		event.createdAt = System.currentTimeMillis();
+		event.level = level;
+		event.page = page;
+		event.text = text;
+	}
+
+	/**
+	 * Writes the buffered events in one transaction.
+	 */
+	public synchronized void flush() {
+		if (mCount == 0) {
+			return;
+		}
+		mDatabase.writeEvents(mRunId, mEvents, mCount);
+		for (int i = 0; i < mCount; i++) {
+			mEvents[i].page = null;
+			mEvents[i].text = null;
+		}
+		mCount = 0;
+	}
+
+	/**
+	 * Flushes the buffer and prunes old events.
+	 */
+	public void close() {
+		flush();
+		mDatabase.pruneEvents(MAX_EVENTS, System.currentTimeMillis() - MAX_AGE);
+	}
+
+}
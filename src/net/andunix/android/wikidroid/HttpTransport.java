@@ -0,0 +1,271 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import android.util.Log;
+
+/**
+ * The HTTP connection shared by all XML-RPC clients of a sync.
+ * <p>
+ * Connections are pooled and kept alive between calls, responses are
+ * requested gzip compressed and the bytes on the wire are counted. As all
+ * clients share one cookie store, a single <code>dokuwiki.login</code> is
+ * enough for all of them.
+ * <p>
+ * To go easy on small DokuWiki installations, there are never more than
+ * {@link #MAX_CONNECTIONS_PER_HOST} connections to a host and requests to a
+ * host are limited to {@link #MAX_REQUESTS_PER_SECOND}.
+ */
+public class HttpTransport {
+
+	private static final String TAG = "HttpTransport";
+
+	private static final int CONNECTION_TIMEOUT = 20 * 1000;
+	private static final int SOCKET_TIMEOUT = 60 * 1000;
+	/** keep idle connections this long if the server doesn't say otherwise */
+	private static final long DEFAULT_KEEP_ALIVE = 30 * 1000L;
+	public static final int MAX_CONNECTIONS_PER_HOST = 4;
+	public static final double MAX_REQUESTS_PER_SECOND = 8.0;
+	private static final int REQUEST_BURST = 8;
+
+	private final DefaultHttpClient mHttpClient;
+	private final AtomicLong mBytesSent = new AtomicLong();
+	private final AtomicLong mBytesReceived = new AtomicLong();
+	private final AtomicLong mRequests = new AtomicLong();
+	private final Map<String, RateLimiter> mRateLimiters = new HashMap<String, RateLimiter>();
+
+	public HttpTransport(int maxConnections) {
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, "UTF-8");
+		// avoids a round trip before every POST body
+		HttpProtocolParams.setUseExpectContinue(params, false);
+		HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+		ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(
+				Math.min(maxConnections, MAX_CONNECTIONS_PER_HOST)));
+
+		SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+		mHttpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+		mHttpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				HeaderElementIterator it = new BasicHeaderElementIterator(
+						response.headerIterator("Keep-Alive"));
+				while (it.hasNext()) {
+					HeaderElement element = it.nextElement();
+					if ("timeout".equalsIgnoreCase(element.getName())
+							&& (element.getValue() != null)) {
+						try {
+							return Long.parseLong(element.getValue()) * 1000L;
+						} catch (NumberFormatException e) {} // ignored
+					}
+				}
+				return DEFAULT_KEEP_ALIVE;
+			}
+		});
+		mHttpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+			@Override
+			public void process(HttpRequest request, HttpContext context)
+					throws HttpException, IOException {
+				HttpHost host = (HttpHost) context.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+				if (host != null) {
+					try {
+						getRateLimiter(host.getHostName()).acquire();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+				mRequests.incrementAndGet();
+				if (!request.containsHeader("Accept-Encoding")) {
+					request.addHeader("Accept-Encoding", "gzip");
+				}
+				if (request instanceof HttpEntityEnclosingRequest) {
+					HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+					if ((entity != null) && (entity.getContentLength() > 0)) {
+						mBytesSent.addAndGet(entity.getContentLength());
+					}
+				}
+			}
+		});
+		mHttpClient.addResponseInterceptor(new HttpResponseInterceptor() {
+			@Override
+			public void process(HttpResponse response, HttpContext context)
+					throws HttpException, IOException {
+				HttpEntity entity = response.getEntity();
+				if (entity == null) {
+					return;
+				}
+				entity = new CountingEntity(entity);
+				Header encoding = entity.getContentEncoding();
+				if ((encoding != null) && "gzip".equalsIgnoreCase(encoding.getValue())) {
+					entity = new GzipEntity(entity);
+				}
+				response.setEntity(entity);
+			}
+		});
+	}
+
+	public DefaultHttpClient getHttpClient() {
+		return mHttpClient;
+	}
+
+	/** @return the request bodies sent so far, in bytes */
+	public long getBytesSent() {
+		return mBytesSent.get();
+	}
+
+	/** @return the (compressed) response bodies received so far, in bytes */
+	public long getBytesReceived() {
+		return mBytesReceived.get();
+	}
+
+	public long getRequests() {
+		return mRequests.get();
+	}
+
+	private RateLimiter getRateLimiter(String host) {
+		synchronized (mRateLimiters) {
+			RateLimiter limiter = mRateLimiters.get(host);
+			if (limiter == null) {
+				limiter = new RateLimiter(MAX_REQUESTS_PER_SECOND, REQUEST_BURST);
+				mRateLimiters.put(host, limiter);
+			}
+			return limiter;
+		}
+	}
+
+	public void shutdown() {
+		Log.d(TAG, mRequests.get()+" requests, "+mBytesSent.get()+" bytes sent, "
+				+mBytesReceived.get()+" bytes received");
+		mHttpClient.getConnectionManager().shutdown();
+	}
+
+	/**
+	 * Counts the bytes read from the wire.
+	 */
+	private class CountingEntity extends HttpEntityWrapper {
+		public CountingEntity(HttpEntity wrapped) {
+			super(wrapped);
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return new FilterInputStream(wrappedEntity.getContent()) {
+				private long mCount = 0L;
+
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if (b >= 0) {
+						count(1);
+					}
+					return b;
+				}
+
+				@Override
+				public int read(byte[] buffer, int offset, int length) throws IOException {
+					int n = super.read(buffer, offset, length);
+					if (n > 0) {
+						count(n);
+					}
+					return n;
+				}
+
+				@Override
+				public void close() throws IOException {
+					Log.d(TAG, "response: "+mCount+" bytes");
+					super.close();
+				}
+
+				private void count(int n) {
+					mCount += n;
+					mBytesReceived.addAndGet(n);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Inflates a gzip encoded response.
+	 */
+	private static class GzipEntity extends HttpEntityWrapper {
+		public GzipEntity(HttpEntity wrapped) {
+			super(wrapped);
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return new GZIPInputStream(wrappedEntity.getContent());
+		}
+
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
+
+		@Override
+		public Header getContentEncoding() {
+			return null;
+		}
+	}
+
+}
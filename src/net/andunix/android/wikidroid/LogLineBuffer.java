@@ -0,0 +1,66 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.andunix.android.wikidroid;
+
+/**
+ * Keeps the last lines of a log in a circular buffer.
+ * <p>
+ * Appending a line overwrites the oldest one once the buffer is full, so it
+ * costs the same no matter how long the log gets. Thread safe.
+ */
+public class LogLineBuffer {
+
+	private final String[] mLines;
+	private int mNext = 0;
+	private int mCount = 0;
+	private long mTotal = 0L;
+
+	public LogLineBuffer(int capacity) {
+		mLines = new String[capacity];
+	}
+
+	public synchronized void append(String line) {
+		mLines[mNext] = line;
+		mNext = (mNext + 1) % mLines.length;
+		if (mCount < mLines.length) {
+			mCount++;
+		}
+		mTotal++;
+	}
+
+	/**
+	 * @return the number of lines appended so far, including the ones
+	 *         dropped
+	 */
+	public synchronized long getTotal() {
+		return mTotal;
+	}
+
+	/**
+	 * Appends the buffered lines, oldest first, each one numbered and
+	 * terminated by a newline.
+	 */
+	public synchronized void appendTo(StringBuilder out) {
+		int index = (mNext - mCount + mLines.length) % mLines.length;
+		long number = mTotal - mCount;
+		for (int i = 0; i < mCount; i++) {
+			out.append('[').append(++number).append("] ").append(mLines[index]).append('\n');
+			index = (index + 1) % mLines.length;
+		}
+	}
+
+}
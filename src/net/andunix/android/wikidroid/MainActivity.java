@@ -17,23 +17,77 @@
 
 package net.andunix.android.wikidroid;
 
+import java.util.Date;
+
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.Dialog;
 import android.app.ListActivity;
+import android.app.SearchManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.Cursor;
+import android.graphics.Typeface;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import android.text.style.StyleSpan;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
+import android.widget.TextView;
 
 public class MainActivity extends ListActivity {
 	
     private static final int SYNC_ID = Menu.FIRST;
     private static final int SETTINGS_ID = Menu.FIRST + 1;
+    private static final int SYNC_STATS_ID = Menu.FIRST + 2;
+    private static final int SEARCH_ID = Menu.FIRST + 3;
+    private static final int BROWSE_ID = Menu.FIRST + 4;
+
+    private static final int DIALOG_SYNC_STATS = 1;
+    /** the number of sync runs listed in the statistics */
+    private static final int SYNC_STATS_RUNS = 10;
+    /** the number of warnings and errors of the latest run listed */
+    private static final int SYNC_STATS_PROBLEMS = 10;
+    /** the number of search results listed */
+    private static final int SEARCH_LIMIT = 50;
     
+	/**
+	 * keeps the shared database connection open while the activity lives,
+	 * the background tasks take their own references to it
+	 */
 	private DatabaseController mDatabaseController;
+	/** the query whose results are listed, <code>null</code> for all pages */
+	private String mSearchQuery = null;
+	private EditText mFilter;
+	private final PageListAdapter mPageListAdapter = new PageListAdapter();
+	/** the running load of the page names, <code>null</code> if none */
+	private AsyncTask<Void, Void, PageNameIndex> mIndexTask;
+	/** the running search, <code>null</code> if none */
+	private AsyncTask<Void, Void, Cursor> mSearchTask;
+	/** the running load of the sync stats, <code>null</code> if none */
+	private AsyncTask<Void, Void, String> mStatsTask;
+	/** set once destroyed, results coming in late are dropped */
+	private boolean mDestroyed = false;
+
+	/** reloads the page names once a sync is done */
+	private final BroadcastReceiver mSyncReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			loadPageIndex();
+		}
+	};
 	
     /** Called when the activity is first created. */
     @Override
@@ -41,15 +95,116 @@ public class MainActivity extends ListActivity {
         super.onCreate(savedInstanceState);
 		mDatabaseController = new DatabaseController(this).open();
         setContentView(R.layout.list);
-        fillData();
+        mFilter = (EditText) findViewById(R.id.filter);
+        mFilter.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mPageListAdapter.setFilter(s.toString());
+            }
+        });
+        loadPageIndex();
+        registerReceiver(mSyncReceiver, new IntentFilter(SyncEngine.ACTION_SYNC_FINISHED));
+        handleIntent(getIntent());
         registerForContextMenu(getListView());
     }
+
+    @Override
+    protected void onDestroy() {
+        mDestroyed = true;
+        unregisterReceiver(mSyncReceiver);
+        if (mIndexTask != null) {
+            mIndexTask.cancel(false);
+        }
+        if (mSearchTask != null) {
+            mSearchTask.cancel(false);
+        }
+        if (mStatsTask != null) {
+            mStatsTask.cancel(false);
+        }
+        mDatabaseController.close();
+        super.onDestroy();
+    }
+
+    /**
+     * Loads the page names in the background, the list shows them once
+     * they are there. A load still running is cancelled.
+     * <p>
+     * The load takes its own reference to the database, the one of the
+     * activity is closed in {@link #onDestroy()} while it may still run.
+     */
+    private void loadPageIndex() {
+        if (mIndexTask != null) {
+            mIndexTask.cancel(false);
+        }
+        mIndexTask = new AsyncTask<Void, Void, PageNameIndex>() {
+            @Override
+            protected PageNameIndex doInBackground(Void... params) {
+                if (isCancelled()) {
+                    return null;
+                }
+                DatabaseController database = new DatabaseController(MainActivity.this).open();
+                try {
+                    return database.loadPageNameIndex();
+                } finally {
+                    database.close();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(PageNameIndex index) {
+                if (mIndexTask == this) {
+                    mIndexTask = null;
+                }
+                if (mDestroyed || isCancelled()) {
+                    return;
+                }
+                mPageListAdapter.setIndex(index);
+            }
+        }.execute();
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        setIntent(intent);
+        handleIntent(intent);
+    }
+
+    /**
+     * Lists the results of a search, or all pages.
+     */
+    private void handleIntent(Intent intent) {
+        if ((intent != null) && Intent.ACTION_SEARCH.equals(intent.getAction())) {
+            fillSearchResults(intent.getStringExtra(SearchManager.QUERY));
+        } else {
+            fillData();
+        }
+    }
+
+    @Override
+    public void onBackPressed() {
+        if (mSearchQuery != null) {
+            // back from the search results to all pages
+            fillData();
+            return;
+        }
+        super.onBackPressed();
+    }
     
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);
         menu.add(0, SYNC_ID, 0, R.string.menu_sync);
         menu.add(0, SETTINGS_ID, 0, R.string.menu_settings);
+        menu.add(0, SYNC_STATS_ID, 0, R.string.menu_sync_stats);
+        menu.add(0, SEARCH_ID, 0, R.string.menu_search);
+        menu.add(0, BROWSE_ID, 0, R.string.menu_browse);
         return true;
     }
     
@@ -64,34 +219,309 @@ public class MainActivity extends ListActivity {
         case SETTINGS_ID:
         	startActivity(PrefsActivity.class);
             return true;
+        case SYNC_STATS_ID:
+        	showDialog(DIALOG_SYNC_STATS);
+            return true;
+        case SEARCH_ID:
+        	onSearchRequested();
+            return true;
+        case BROWSE_ID:
+        	startActivity(NamespaceActivity.class);
+            return true;
         }
         return super.onMenuItemSelected(featureId, item);
     }
+
+    @Override
+    protected Dialog onCreateDialog(int id) {
+        switch (id) {
+        case DIALOG_SYNC_STATS:
+            return new AlertDialog.Builder(this)
+                    .setTitle(R.string.sync_stats_title)
+                    .setMessage("")
+                    .setPositiveButton(android.R.string.ok, null)
+                    .create();
+        }
+        return super.onCreateDialog(id);
+    }
+
+    @Override
+    protected void onPrepareDialog(int id, Dialog dialog) {
+        super.onPrepareDialog(id, dialog);
+        if (id == DIALOG_SYNC_STATS) {
+            final AlertDialog stats = (AlertDialog) dialog;
+            stats.setMessage(getString(R.string.loading));
+            if (mStatsTask != null) {
+                mStatsTask.cancel(false);
+            }
+            mStatsTask = new AsyncTask<Void, Void, String>() {
+                @Override
+                protected String doInBackground(Void... params) {
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    DatabaseController database = new DatabaseController(MainActivity.this).open();
+                    try {
+                        return getSyncStats(database);
+                    } finally {
+                        database.close();
+                    }
+                }
+
+                @Override
+                protected void onPostExecute(String text) {
+                    if (mStatsTask == this) {
+                        mStatsTask = null;
+                    }
+                    if (!mDestroyed && !isCancelled() && stats.isShowing()) {
+                        stats.setMessage(text);
+                    }
+                }
+            }.execute();
+        }
+    }
+
+    /**
+     * Formats the latest sync run in detail and the ones before in one line
+     * each. Runs in the background.
+     */
+    private String getSyncStats(DatabaseController database) {
+        StringBuilder stats = new StringBuilder();
+        Cursor runs = database.fetchSyncRuns(SYNC_STATS_RUNS);
+        try {
+            for (runs.moveToFirst(); !runs.isAfterLast(); runs.moveToNext()) {
+                stats.append(SyncActivity.DATE_FORMAT.format(new Date(runs.getLong(
+                        runs.getColumnIndex(DatabaseController.KEY_CREATED_AT)))));
+                stats.append(": ").append(runs.getLong(
+                        runs.getColumnIndex(DatabaseController.KEY_DURATION)) / 1000L).append(" s, ");
+                stats.append(runs.getInt(runs.getColumnIndex(DatabaseController.KEY_DOWNLOADED)))
+                        .append(" down, ");
+                stats.append(runs.getInt(runs.getColumnIndex(DatabaseController.KEY_UPLOADED)))
+                        .append(" up, ");
+                stats.append(runs.getInt(runs.getColumnIndex(DatabaseController.KEY_MERGED)))
+                        .append(" merged, ");
+                stats.append(runs.getInt(runs.getColumnIndex(DatabaseController.KEY_FAILED)))
+                        .append(" failed\n");
+                if (runs.isFirst()) {
+                    stats.append(runs.getLong(runs.getColumnIndex(DatabaseController.KEY_REQUESTS)))
+                            .append(" requests, ");
+                    stats.append(runs.getLong(runs.getColumnIndex(DatabaseController.KEY_BYTES_SENT)))
+                            .append(" bytes sent, ");
+                    stats.append(runs.getLong(runs.getColumnIndex(DatabaseController.KEY_BYTES_RECEIVED)))
+                            .append(" bytes received, db ");
+                    stats.append(runs.getLong(runs.getColumnIndex(DatabaseController.KEY_DB_TIME)))
+                            .append(" ms\n");
+                    stats.append(runs.getString(runs.getColumnIndex(DatabaseController.KEY_TEXT)))
+                            .append('\n');
+                    appendProblems(database, stats, runs.getLong(runs.getColumnIndex(DatabaseController.KEY_ROWID)));
+                }
+            }
+        } finally {
+            runs.close();
+        }
+        if (stats.length() == 0) {
+            stats.append(getString(R.string.no_sync_runs));
+        }
+        return stats.toString();
+    }
+
+    /**
+     * Appends the warnings and errors logged by a sync run.
+     */
+    private void appendProblems(DatabaseController database, StringBuilder stats, long runId) {
+        Cursor events = database.fetchEvents(runId);
+        try {
+            int problems = 0;
+            for (events.moveToFirst(); !events.isAfterLast(); events.moveToNext()) {
+                if (events.getInt(events.getColumnIndex(DatabaseController.KEY_LEVEL))
+                        == EventLog.LEVEL_INFO) {
+                    continue;
+                }
+                if (++problems > SYNC_STATS_PROBLEMS) {
+                    stats.append("...\n");
+                    break;
+                }
+                String page = events.getString(events.getColumnIndex(DatabaseController.KEY_PAGE));
+                if (page != null) {
+                    stats.append(page).append(": ");
+                }
+                stats.append(events.getString(events.getColumnIndex(DatabaseController.KEY_TEXT)))
+                        .append('\n');
+            }
+        } finally {
+            events.close();
+        }
+    }
     
     private void fillData() {
-        Cursor pagesCursor = mDatabaseController.fetchAllPages();
-        startManagingCursor(pagesCursor);
+        mSearchQuery = null;
+        setTitle(R.string.app_name);
+        ((TextView) findViewById(android.R.id.empty)).setText(R.string.no_pages);
+        mFilter.setVisibility(View.VISIBLE);
+        setListAdapter(mPageListAdapter);
+    }
 
-        // Create an array to specify the fields we want to display in the list (only TITLE)
-        String[] from = new String[] { DatabaseController.KEY_NAME };
+    /**
+     * Searches in the background, the results are listed once they are
+     * there. A search still running is cancelled.
+     */
+    private void fillSearchResults(final String query) {
+        mSearchQuery = query;
+        setTitle(getString(R.string.search_title, query));
+        ((TextView) findViewById(android.R.id.empty)).setText(R.string.loading);
+        mFilter.setVisibility(View.GONE);
+        setListAdapter(null);
+        if (mSearchTask != null) {
+            mSearchTask.cancel(false);
+        }
+        mSearchTask = new AsyncTask<Void, Void, Cursor>() {
+            @Override
+            protected Cursor doInBackground(Void... params) {
+                if (isCancelled()) {
+                    return null;
+                }
+                Cursor results;
+                DatabaseController database = new DatabaseController(MainActivity.this).open();
+                try {
+                    results = database.search(query, SEARCH_LIMIT);
+                } finally {
+                    database.close();
+                }
+                if (isCancelled()) {
+                    // nobody takes the results any more
+                    results.close();
+                    return null;
+                }
+                return results;
+            }
 
-        // and an array of the fields we want to bind those fields to (in this case just text1)
-        int[] to = new int[]{ android.R.id.text1 };
+            @Override
+            protected void onPostExecute(Cursor results) {
+                if (mSearchTask == this) {
+                    mSearchTask = null;
+                }
+                if (results == null) {
+                    return;
+                }
+                if (mDestroyed || isCancelled() || !query.equals(mSearchQuery)) {
+                    // left or searched again meanwhile
+                    results.close();
+                    return;
+                }
+                showSearchResults(results);
+            }
+        }.execute();
+    }
 
-        // Now create a simple cursor adapter and set it to display
-        SimpleCursorAdapter notes = 
-            new SimpleCursorAdapter(this, R.layout.list_row, pagesCursor, from, to);
-        setListAdapter(notes);
+    private void showSearchResults(Cursor resultsCursor) {
+        ((TextView) findViewById(android.R.id.empty)).setText(R.string.no_search_results);
+        startManagingCursor(resultsCursor);
+
+        String[] from = new String[] { DatabaseController.KEY_NAME, DatabaseController.KEY_SNIPPET };
+        int[] to = new int[]{ android.R.id.text1, android.R.id.text2 };
+        SimpleCursorAdapter results =
+            new SimpleCursorAdapter(this, R.layout.search_row, resultsCursor, from, to);
+        results.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
+            @Override
+            public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
+                if (view.getId() != android.R.id.text2) {
+                    return false;
+                }
+                ((TextView) view).setText(highlight(cursor.getString(columnIndex)));
+                return true;
+            }
+        });
+        setListAdapter(results);
+    }
+
+    /**
+     * Shows the matched terms of a search snippet in bold.
+     */
+    private static CharSequence highlight(String snippet) {
+        SpannableStringBuilder text = new SpannableStringBuilder();
+        int start = -1;
+        for (int i = 0; i < snippet.length(); i++) {
+            char c = snippet.charAt(i);
+            if (c == SearchQuery.MATCH_START) {
+                start = text.length();
+            } else if ((c == SearchQuery.MATCH_END) && (start >= 0)) {
+                text.setSpan(new StyleSpan(Typeface.BOLD), start, text.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                start = -1;
+            } else {
+                text.append(c);
+            }
+        }
+        return text;
     }
     
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
         super.onListItemClick(l, v, position, id);
-        Intent i = new Intent(this, EditActivity.class);
+        Intent i = new Intent(this, ViewActivity.class);
         i.putExtra(DatabaseController.KEY_ROWID, id);
         startActivity(i);
     }
     
+    /**
+     * Lists the pages of the {@link PageNameIndex} matching the filter.
+     */
+    private class PageListAdapter extends BaseAdapter {
+        private PageNameIndex mIndex = null;
+        private String mPrefix = "";
+        /** the matching positions in the index, <code>null</code> for all */
+        private int[] mPositions = null;
+
+        public void setIndex(PageNameIndex index) {
+            mIndex = index;
+            setFilter(mPrefix);
+        }
+
+        public void setFilter(String prefix) {
+            mPrefix = prefix.trim();
+            mPositions = ((mIndex == null) || (mPrefix.length() == 0)) ? null
+                    : mIndex.find(mPrefix);
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            if (mIndex == null) {
+                return 0;
+            }
+            return (mPositions == null) ? mIndex.size() : mPositions.length;
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return mIndex.getName(getIndexPosition(position));
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return mIndex.getId(getIndexPosition(position));
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TextView view = (TextView) convertView;
+            if (view == null) {
+                view = (TextView) getLayoutInflater().inflate(R.layout.list_row, parent, false);
+            }
+            view.setText(mIndex.getName(getIndexPosition(position)));
+            return view;
+        }
+
+        private int getIndexPosition(int position) {
+            return (mPositions == null) ? position : mPositions[position];
+        }
+    }
+    
     protected void startActivity(Class<? extends Activity> activityClass) {
         Intent intent = new Intent(this, activityClass);
         startActivity(intent);
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xmlrpc.android.XMLRPCClient;
+import org.xmlrpc.android.XMLRPCException;
+import org.xmlrpc.android.XMLRPCFault;
+
+import android.util.Log;
+
+/**
+ * Sends many calls of the same method in one <code>system.multicall</code>
+ * request. Falls back to single calls if the server doesn't support it.
+ * <p>
+ * Not thread safe, just like the wrapped {@link XMLRPCClient}.
+ */
+public class MulticallClient {
+
+	private static final String TAG = "MulticallClient";
+
+	public static final int MIN_BATCH_SIZE = 1;
+	public static final int MAX_BATCH_SIZE = 50;
+	/** aim for multicall responses of about this size */
+	public static final int TARGET_BATCH_BYTES = 256 * 1024;
+
+	private final XMLRPCClient mClient;
+	private final SyncMetrics mMetrics;
+	private boolean mMulticall = true;
+
+	public MulticallClient(XMLRPCClient client) {
+		this(client, null);
+	}
+
+	/**
+	 * @param metrics
+	 *            records the latency of every request, may be
+	 *            <code>null</code>
+	 */
+	public MulticallClient(XMLRPCClient client, SyncMetrics metrics) {
+		mClient = client;
+		mMetrics = metrics;
+	}
+
+	public XMLRPCClient getClient() {
+		return mClient;
+	}
+
+	/**
+	 * Calls <code>method</code> once for every parameter list.
+	 *
+	 * @return one result per call, in order. A failed call has an
+	 *         {@link XMLRPCException} as its result.
+	 * @throws XMLRPCException
+	 *             if the request as a whole failed
+	 */
+	public Object[] callAll(String method, List<Object[]> params) throws XMLRPCException {
+		if (mMulticall && (params.size() > 1)) {
+			try {
+				return multicall(method, params);
+			} catch (XMLRPCFault f) {
+				Log.w(TAG, "system.multicall not available: "+f.getFaultString());
+				mMulticall = false;
+			}
+		}
+		Object[] result = new Object[params.size()];
+		for (int i = 0; i < result.length; i++) {
+			try {
+				result[i] = call(method, params.get(i));
+			} catch (XMLRPCFault f) {
+				result[i] = f;
+			}
+		}
+		return result;
+	}
+
+	private Object call(String method, Object[] params) throws XMLRPCException {
+		final long start = System.nanoTime();
+		boolean ok = false;
+		try {
+			Object result = mClient.callEx(method, params);
+			ok = true;
+			return result;
+		} finally {
+			if (mMetrics != null) {
+				mMetrics.recordRpc(method, System.nanoTime() - start, ok);
+			}
+		}
+	}
+
+	private Object[] multicall(String method, List<Object[]> params) throws XMLRPCException {
+		Object[] calls = new Object[params.size()];
+		for (int i = 0; i < calls.length; i++) {
+			Map<String, Object> call = new HashMap<String, Object>();
+			call.put("methodName", method);
+			call.put("params", params.get(i));
+			calls[i] = call;
+		}
+		Object[] responses = (Object[]) call("system.multicall", new Object[] { calls });
+		if (responses.length != calls.length) {
+			throw new XMLRPCException("system.multicall: expected "+calls.length
+					+" results, got "+responses.length);
+		}
+		Object[] result = new Object[responses.length];
+		for (int i = 0; i < responses.length; i++) {
+			// a result is wrapped in a one element array, a fault is a struct
+			if (responses[i] instanceof Object[]) {
+				result[i] = ((Object[]) responses[i])[0];
+			} else {
+				@SuppressWarnings("unchecked")
+				Map<String, Object> fault = (Map<String, Object>) responses[i];
+				Object code = fault.get("faultCode");
+				result[i] = new XMLRPCFault((String) fault.get("faultString"),
+						code instanceof Integer ? (Integer) code : 0);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Calculates the number of calls for the next batch, so its response is
+	 * about {@link #TARGET_BATCH_BYTES} long.
+	 */
+	public static int getBatchSize(long averageBytes) {
+		if (averageBytes <= 0) {
+			return MAX_BATCH_SIZE;
+		}
+		long size = TARGET_BATCH_BYTES / averageBytes;
+		return (int) Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, size));
+	}
+
+}
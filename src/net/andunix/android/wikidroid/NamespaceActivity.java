@@ -0,0 +1,177 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import android.app.ListActivity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.ListView;
+import android.widget.SimpleCursorAdapter;
+import android.widget.TextView;
+
+/**
+ * Browses the namespace tree, one namespace at a time. Opening a
+ * namespace only loads its direct children, its sub-namespaces come with
+ * their cached page counts.
+ */
+public class NamespaceActivity extends ListActivity {
+
+	/** the namespace shown, the root namespace if not set */
+	public static final String EXTRA_NAMESPACE = "namespace";
+
+	private DatabaseController mDatabaseController;
+	private String mNamespace;
+	/** the running load of the children, <code>null</code> if none */
+	private AsyncTask<Void, Void, Cursor> mFillTask;
+	/** set once destroyed, results coming in late are closed */
+	private boolean mDestroyed = false;
+
+	private final BroadcastReceiver mSyncReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			fillData();
+		}
+	};
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		mDatabaseController = new DatabaseController(this).open();
+		mNamespace = getIntent().getStringExtra(EXTRA_NAMESPACE);
+		if (mNamespace == null) {
+			mNamespace = "";
+			setTitle(R.string.root_namespace);
+		} else {
+			setTitle(mNamespace);
+		}
+		fillData();
+		registerReceiver(mSyncReceiver, new IntentFilter(SyncEngine.ACTION_SYNC_FINISHED));
+	}
+
+	@Override
+	protected void onDestroy() {
+		mDestroyed = true;
+		unregisterReceiver(mSyncReceiver);
+		if (mFillTask != null) {
+			mFillTask.cancel(false);
+		}
+		mDatabaseController.close();
+		super.onDestroy();
+	}
+
+	/**
+	 * Loads the children in the background, the list shows them once they
+	 * are there. A load still running is cancelled.
+	 * <p>
+	 * The load takes its own reference to the database, the one of the
+	 * activity is closed in {@link #onDestroy()} while it may still run.
+	 */
+	private void fillData() {
+		if (mFillTask != null) {
+			mFillTask.cancel(false);
+		}
+		mFillTask = new AsyncTask<Void, Void, Cursor>() {
+			@Override
+			protected Cursor doInBackground(Void... params) {
+				if (isCancelled()) {
+					return null;
+				}
+				DatabaseController database = new DatabaseController(NamespaceActivity.this).open();
+				try {
+					Cursor children = database.fetchNamespaceChildren(mNamespace);
+					// runs the query here, not once the list asks for the count
+					children.getCount();
+					if (isCancelled()) {
+						// nobody takes the cursor any more
+						children.close();
+						return null;
+					}
+					return children;
+				} finally {
+					database.close();
+				}
+			}
+
+			@Override
+			protected void onPostExecute(Cursor children) {
+				if (mFillTask == this) {
+					mFillTask = null;
+				}
+				if (children == null) {
+					return;
+				}
+				if (mDestroyed || isCancelled()) {
+					children.close();
+					return;
+				}
+				showChildren(children);
+			}
+		}.execute();
+	}
+
+	private void showChildren(Cursor children) {
+		startManagingCursor(children);
+
+		String[] from = new String[] { DatabaseController.KEY_NAME, DatabaseController.KEY_TOTAL };
+		int[] to = new int[] { android.R.id.text1, android.R.id.text2 };
+		SimpleCursorAdapter adapter = new SimpleCursorAdapter(this,
+				R.layout.namespace_row, children, from, to);
+		adapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
+			@Override
+			public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
+				TextView text = (TextView) view;
+				if (view.getId() == android.R.id.text1) {
+					String name = WikiPage.getLeafName(cursor.getString(columnIndex));
+					text.setText(isNamespace(cursor) ? name + WikiPage.NAMESPACE_SEPARATOR : name);
+				} else {
+					text.setText(isNamespace(cursor) ? getString(R.string.namespace_pages,
+							cursor.getInt(columnIndex)) : "");
+				}
+				return true;
+			}
+		});
+		setListAdapter(adapter);
+	}
+
+	@Override
+	protected void onListItemClick(ListView l, View v, int position, long id) {
+		super.onListItemClick(l, v, position, id);
+		Cursor cursor = (Cursor) l.getItemAtPosition(position);
+		Intent i;
+		if (isNamespace(cursor)) {
+			i = new Intent(this, NamespaceActivity.class);
+			i.putExtra(EXTRA_NAMESPACE, cursor.getString(cursor.getColumnIndex(
+					DatabaseController.KEY_NAME)));
+		} else {
+			i = new Intent(this, ViewActivity.class);
+			i.putExtra(DatabaseController.KEY_ROWID, id);
+		}
+		startActivity(i);
+	}
+
+	private static boolean isNamespace(Cursor cursor) {
+		return cursor.getInt(cursor.getColumnIndex(DatabaseController.KEY_IS_NAMESPACE)) != 0;
+	}
+
+}
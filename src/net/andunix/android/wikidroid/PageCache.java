@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The recently opened pages with their bodies inflated, least recently used
+ * first.
+ * <p>
+ * The cache is bounded by the chars it holds, a sixteenth of the heap.
+ * Every write of a page removes it, so the cache never returns what is not
+ * in the database. A load that started before a page was removed must not
+ * put it back, so pages are only put with the {@link #getGeneration()
+ * generation} seen before loading them.
+ * <p>
+ * Cached pages are shared, they must not be modified.
+ */
+public class PageCache {
+
+	private static final PageCache sInstance = new PageCache(
+			Runtime.getRuntime().maxMemory() / 16 / 2);
+
+	private final long mMaxChars;
+	private long mChars = 0;
+	/** counts the invalidations */
+	private long mGeneration = 0;
+	private final LinkedHashMap<Long, WikiPage> mPages = new LinkedHashMap<Long, WikiPage>(
+			16, 0.75f, true);
+
+	public static PageCache getInstance() {
+		return sInstance;
+	}
+
+	PageCache(long maxChars) {
+		mMaxChars = maxChars;
+	}
+
+	public synchronized WikiPage get(long rowId) {
+		return mPages.get(rowId);
+	}
+
+	public synchronized long getGeneration() {
+		return mGeneration;
+	}
+
+	/**
+	 * Caches a loaded page, unless a page was removed since
+	 * <code>generation</code> was read.
+	 */
+	public synchronized void put(WikiPage page, long generation) {
+		if (generation != mGeneration) {
+			return;
+		}
+		final long size = sizeOf(page);
+		if (size > mMaxChars) {
+			return;
+		}
+		WikiPage old = mPages.put(page.id, page);
+		if (old != null) {
+			mChars -= sizeOf(old);
+		}
+		mChars += size;
+		Iterator<Map.Entry<Long, WikiPage>> eldest = mPages.entrySet().iterator();
+		while (mChars > mMaxChars) {
+			mChars -= sizeOf(eldest.next().getValue());
+			eldest.remove();
+		}
+	}
+
+	public synchronized void remove(long rowId) {
+		mGeneration++;
+		WikiPage old = mPages.remove(rowId);
+		if (old != null) {
+			mChars -= sizeOf(old);
+		}
+	}
+
+	public synchronized void clear() {
+		mGeneration++;
+		mPages.clear();
+		mChars = 0;
+	}
+
+	private static long sizeOf(WikiPage page) {
+		String body = page.getBody();
+		return page.name.length() + ((body == null) ? 0 : body.length());
+	}
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of page bodies.
+ */
+public class PageCompression {
+
+	/** bodies shorter than this (in chars) are stored as plain text */
+	public static final int THRESHOLD = 2048;
+
+	private static final String CHARSET = "UTF-8";
+
+	private PageCompression() {}
+
+	/**
+	 * Compresses a page body.
+	 *
+	 * @return the compressed body or <code>null</code> if the body is too
+	 *         short or doesn't get smaller
+	 */
+	public static byte[] deflate(String body) {
+		if ((body == null) || (body.length() < THRESHOLD)) {
+			return null;
+		}
+		byte[] input = getBytes(body);
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		try {
+			deflater.setInput(input);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 3);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return (out.size() < input.length) ? out.toByteArray() : null;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	public static String inflate(byte[] compressed) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished()) {
+				int count = inflater.inflate(buffer);
+				if ((count == 0) && inflater.needsInput()) {
+					throw new IllegalStateException("truncated page body");
+				}
+				out.write(buffer, 0, count);
+			}
+			return new String(out.toByteArray(), CHARSET);
+		} catch (DataFormatException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static byte[] getBytes(String body) {
+		try {
+			return body.getBytes(CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.xmlrpc.android.XMLRPCClient;
+import org.xmlrpc.android.XMLRPCException;
+
+import android.util.Log;
+
+/**
+ * Downloads page bodies on a fixed number of worker threads.
+ * <p>
+ * The pipeline is owned by a single writer thread: it {@link #offer(WikiPage)}s
+ * pages and {@link #take()}s them back once their body has been downloaded.
+ * Pages are fetched in <code>system.multicall</code> batches sized by the
+ * average body length seen so far. At most two batches per worker are in the
+ * pipeline at any time, so downloaded bodies can't pile up faster than the
+ * writer stores them.
+ */
+public class PageDownloader {
+
+	private static final String TAG = "PageDownloader";
+
+	public interface ClientFactory {
+		/** creates a new client for a worker thread */
+		public XMLRPCClient createClient() throws XMLRPCException;
+	}
+
+	private final ClientFactory mClientFactory;
+	private final SyncMetrics mMetrics;
+	private final ExecutorService mExecutor;
+	private final BlockingQueue<WikiPage> mDone;
+	private final int mThreads;
+	private List<WikiPage> mBatch = new ArrayList<WikiPage>();
+	private int mPending = 0;
+
+	// written by the workers, read by the writer
+	private volatile int mBatchSize = 10;
+	private long mAverageBytes = 0L;
+
+	// XMLRPCClient is not thread safe, so every worker has its own
+	private final ThreadLocal<MulticallClient> mClient = new ThreadLocal<MulticallClient>();
+
+	/**
+	 * @param metrics
+	 *            records the download requests, may be <code>null</code>
+	 */
+	public PageDownloader(ClientFactory clientFactory, int threads, SyncMetrics metrics) {
+		mClientFactory = clientFactory;
+		mMetrics = metrics;
+		mThreads = threads;
+		mDone = new LinkedBlockingQueue<WikiPage>();
+		mExecutor = new ThreadPoolExecutor(threads, threads, 30L,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	}
+
+	/**
+	 * Queues a page for download.
+	 *
+	 * @return <code>false</code> if the pipeline is full and the writer has to
+	 *         {@link #take()} a page first
+	 */
+	public boolean offer(WikiPage page) {
+		final int batchSize = mBatchSize;
+		if (mPending >= 2 * mThreads * batchSize) {
+			return false;
+		}
+		mPending++;
+		mBatch.add(page);
+		if (mBatch.size() >= batchSize) {
+			dispatch();
+		}
+		return true;
+	}
+
+	/**
+	 * Waits for the next finished download.
+	 *
+	 * @return the page, its body is <code>null</code> if the download failed
+	 */
+	public WikiPage take() throws InterruptedException {
+		if (mDone.isEmpty() && !mBatch.isEmpty()) {
+			dispatch();
+		}
+		WikiPage page = mDone.take();
+		mPending--;
+		return page;
+	}
+
+	/**
+	 * @return <code>true</code> if {@link #take()} doesn't have to wait
+	 */
+	public boolean hasDone() {
+		return !mDone.isEmpty();
+	}
+
+	/**
+	 * @return the number of pages offered but not taken yet
+	 */
+	public int getPending() {
+		return mPending;
+	}
+
+	public void shutdown() {
+		mExecutor.shutdownNow();
+	}
+
+	private void dispatch() {
+		final List<WikiPage> batch = mBatch;
+		mBatch = new ArrayList<WikiPage>();
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				download(batch);
+				mDone.addAll(batch);
+			}
+		});
+	}
+
+	private void download(List<WikiPage> batch) {
+		Log.d(TAG, "--- download("+batch.size()+" pages) ---");
+		try {
+			MulticallClient client = mClient.get();
+			if (client == null) {
+				client = new MulticallClient(mClientFactory.createClient(), mMetrics);
+				mClient.set(client);
+			}
+			List<Object[]> params = new ArrayList<Object[]>(batch.size());
+			for (WikiPage page : batch) {
+				params.add(new Object[] { page.name });
+			}
+			Object[] results = client.callAll("wiki.getPage", params);
+			long bytes = 0L;
+			for (int i = 0; i < results.length; i++) {
+				WikiPage page = batch.get(i);
+				if (results[i] instanceof String) {
+					page.body = (String) results[i];
+					bytes += page.body.length();
+				} else {
+					Log.e(TAG, page.name+": "+results[i]);
+					page.body = null;
+				}
+			}
+			updateBatchSize(bytes / results.length);
+		} catch (Exception e) {
+			Log.e(TAG, e.getMessage(), e);
+			for (WikiPage page : batch) {
+				page.body = null;
+			}
+		}
+	}
+
+	private synchronized void updateBatchSize(long averageBytes) {
+		mAverageBytes = (mAverageBytes == 0L) ? averageBytes
+				: (3L * mAverageBytes + averageBytes) / 4L;
+		mBatchSize = MulticallClient.getBatchSize(mAverageBytes);
+	}
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The names of all pages, for filtering the page list while a name is
+ * typed.
+ * <p>
+ * Names are kept sorted in one array and their row ids in another. A
+ * second array holds the positions sorted by the name without namespace,
+ * so both <code>wiki:syn</code> and <code>syn</code> find
+ * <code>wiki:syntax</code> with two binary searches. The index is
+ * immutable, a sync builds a new one.
+ */
+public class PageNameIndex {
+
+	private static final char NAMESPACE_SEPARATOR = ':';
+
+	private final String[] mNames;
+	private final long[] mIds;
+	/** positions in mNames, sorted by the name without namespace */
+	private final int[] mByLeaf;
+
+	/**
+	 * @param names
+	 *            page names, sorted if possible
+	 * @param ids
+	 *            the row id of each page
+	 */
+	PageNameIndex(String[] names, long[] ids) {
+		final int count = names.length;
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		if (!isSorted(names)) {
+			// SQLite sorts by UTF-8 bytes, Java by UTF-16 chars
+			final String[] unsorted = names;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return unsorted[a].compareTo(unsorted[b]);
+				}
+			});
+		}
+		mNames = new String[count];
+		mIds = new long[count];
+		for (int i = 0; i < count; i++) {
+			mNames[i] = names[order[i]];
+			mIds[i] = ids[order[i]];
+		}
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return compareLeaf(mNames[a], mNames[b]);
+			}
+		});
+		mByLeaf = new int[count];
+		for (int i = 0; i < count; i++) {
+			mByLeaf[i] = order[i];
+		}
+	}
+
+	public int size() {
+		return mNames.length;
+	}
+
+	public String getName(int position) {
+		return mNames[position];
+	}
+
+	public long getId(int position) {
+		return mIds[position];
+	}
+
+	/**
+	 * Finds the pages whose name, or name without namespace, starts with the
+	 * given prefix. A prefix containing a namespace only matches whole
+	 * names.
+	 *
+	 * @return the positions of the matching pages, in name order
+	 */
+	public int[] find(String prefix) {
+		prefix = prefix.toLowerCase();
+		if (prefix.length() == 0) {
+			return range(0, mNames.length);
+		}
+		final int from = lowerBound(prefix, false, false);
+		final int to = lowerBound(prefix, false, true);
+		if (prefix.indexOf(NAMESPACE_SEPARATOR) >= 0) {
+			return range(from, to);
+		}
+		final int leafFrom = lowerBound(prefix, true, false);
+		final int leafTo = lowerBound(prefix, true, true);
+		int[] result = new int[(to - from) + (leafTo - leafFrom)];
+		int count = 0;
+		for (int i = from; i < to; i++) {
+			result[count++] = i;
+		}
+		for (int i = leafFrom; i < leafTo; i++) {
+			int position = mByLeaf[i];
+			if ((position < from) || (position >= to)) {
+				// not matched by its whole name already
+				result[count++] = position;
+			}
+		}
+		Arrays.sort(result, 0, count);
+		return (count == result.length) ? result : copyOf(result, count);
+	}
+
+	/**
+	 * Binary search for the first name which starts with the prefix (or is
+	 * greater), or with <code>after</code> the first one which is greater
+	 * and does not start with it.
+	 */
+	private int lowerBound(String prefix, boolean leaf, boolean after) {
+		int low = 0;
+		int high = mNames.length;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			String name = leaf ? mNames[mByLeaf[mid]] : mNames[mid];
+			int cmp = comparePrefix(name, leaf ? leafStart(name) : 0, prefix);
+			if ((cmp < 0) || (after && (cmp == 0))) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Compares the part of a name from <code>start</code> with a prefix.
+	 *
+	 * @return 0 if it starts with the prefix
+	 */
+	private static int comparePrefix(String name, int start, String prefix) {
+		final int length = Math.min(name.length() - start, prefix.length());
+		for (int i = 0; i < length; i++) {
+			char a = name.charAt(start + i);
+			char b = prefix.charAt(i);
+			if (a != b) {
+				return a - b;
+			}
+		}
+		return (name.length() - start < prefix.length()) ? -1 : 0;
+	}
+
+	private static int compareLeaf(String a, String b) {
+		final int startA = leafStart(a);
+		final int startB = leafStart(b);
+		final int length = Math.min(a.length() - startA, b.length() - startB);
+		for (int i = 0; i < length; i++) {
+			char ca = a.charAt(startA + i);
+			char cb = b.charAt(startB + i);
+			if (ca != cb) {
+				return ca - cb;
+			}
+		}
+		return (a.length() - startA) - (b.length() - startB);
+	}
+
+	private static int leafStart(String name) {
+		return name.lastIndexOf(NAMESPACE_SEPARATOR) + 1;
+	}
+
+	private static int[] range(int from, int to) {
+		int[] result = new int[to - from];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = from + i;
+		}
+		return result;
+	}
+
+	private static int[] copyOf(int[] array, int length) {
+		int[] result = new int[length];
+		System.arraycopy(array, 0, result, 0, length);
+		return result;
+	}
+
+	private static boolean isSorted(String[] names) {
+		for (int i = 1; i < names.length; i++) {
+			if (names[i - 1].compareTo(names[i]) >= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
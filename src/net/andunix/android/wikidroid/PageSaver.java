@@ -0,0 +1,502 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Loads and saves edited page bodies on one background thread, loaded
+ * pages are kept in the {@link PageCache}.
+ * <p>
+ * There is a single saver per process, so a page reopened after a rotation
+ * is only loaded once the save of the previous activity is written. Saves
+ * of the same page which pile up are written at once, with the latest text.
+ * An edit doesn't overwrite a body a sync stored meanwhile, it is merged
+ * into it.
+ */
+public class PageSaver {
+
+	private static final String TAG = "PageSaver";
+	/** how often a save is tried if a sync writes the page meanwhile */
+	private static final int MAX_ATTEMPTS = 3;
+
+	public interface LoadCallback {
+		/**
+		 * Called on the main thread.
+		 *
+		 * @param page
+		 *            <code>null</code> if it doesn't exist
+		 * @param sections
+		 *            the sections of a large page, <code>null</code> if the
+		 *            page is not edited by section
+		 */
+		public void onLoaded(WikiPage page, List<PageSections.Section> sections);
+	}
+
+	public interface MergeListener {
+		/**
+		 * Called on the main thread when a save had to be merged into a
+		 * body a sync stored meanwhile. The editor goes on with the merged
+		 * text and hands it to {@link PageSaver#saveMerged}, until then
+		 * its saves are merged again.
+		 *
+		 * @param merged
+		 *            the body as stored, with the conflicts marked
+		 * @param from
+		 *            the editor's text the merge was made from
+		 */
+		public void onMerged(String merged, String from, int conflicts);
+	}
+
+	/**
+	 * Work on pages which has to see the saves queued before it.
+	 */
+	public interface Task<T> {
+		/** called on the saver thread */
+		public T run(DatabaseController database);
+
+		/** called on the main thread with the result */
+		public void onDone(T result);
+	}
+
+	/**
+	 * The body an editor's text is based on, so a save can tell if the page
+	 * was changed by a sync meanwhile, and where the section edited is
+	 * stored. Only changed on the saver thread once the editing started.
+	 */
+	public static class Session {
+		/** the hash of the stored body, <code>null</code> if it is not known */
+		private volatile String mBaseHash;
+		/** the merge base, <code>null</code> if it is not known */
+		private String mBaseText;
+		/** the offset of the section edited, -1 if the whole body is */
+		private int mSectionStart;
+		/** the section as stored */
+		private String mSectionText;
+		/**
+		 * the editor's text a merge was made from while the editor hasn't
+		 * taken the merge yet, <code>null</code> if it has; only used on
+		 * the saver thread
+		 */
+		private String mEditorText;
+		/** a merge not passed to the listener yet, guarded by the session */
+		private String mMergedText;
+		private String mMergedFrom;
+		private int mMergeConflicts;
+		/** only used on the main thread */
+		private MergeListener mMergeListener;
+
+		/**
+		 * An editor of the whole body.
+		 *
+		 * @param baseText
+		 *            the body as loaded, <code>null</code> if only its hash is
+		 *            known
+		 */
+		public Session(String baseHash, String baseText) {
+			mBaseHash = baseHash;
+			mBaseText = baseText;
+			mSectionStart = -1;
+		}
+
+		/**
+		 * An editor of a section of a large page.
+		 *
+		 * @param sectionStart
+		 *            the offset the section was read at
+		 */
+		public Session(String baseHash, int sectionStart, String sectionText) {
+			mBaseHash = baseHash;
+			mSectionStart = sectionStart;
+			mSectionText = sectionText;
+		}
+
+		/**
+		 * @return the hash of the body the editor's text is based on,
+		 *         <code>null</code> if it is not known
+		 */
+		public String getBaseHash() {
+			return mBaseHash;
+		}
+
+		/**
+		 * Sets who is told about merges, on the main thread. A merge made
+		 * while nobody listened, like during a rotation, is passed on at
+		 * once.
+		 */
+		public void setMergeListener(MergeListener listener) {
+			mMergeListener = listener;
+			deliverMerge();
+		}
+
+		private void rebase(String text, String hash) {
+			mBaseText = text;
+			mBaseHash = hash;
+		}
+
+		private synchronized void setMerged(String merged, String from, int conflicts) {
+			mEditorText = from;
+			mMergedText = merged;
+			mMergedFrom = from;
+			mMergeConflicts = conflicts;
+		}
+
+		/** the editor's text and the stored body are the same again */
+		private synchronized void clearMerge() {
+			mEditorText = null;
+			mMergedText = null;
+			mMergedFrom = null;
+		}
+
+		private void deliverMerge() {
+			String merged;
+			String from;
+			int conflicts;
+			synchronized (this) {
+				if ((mMergeListener == null) || (mMergedText == null)) {
+					return;
+				}
+				merged = mMergedText;
+				from = mMergedFrom;
+				conflicts = mMergeConflicts;
+				mMergedText = null;
+				mMergedFrom = null;
+			}
+			mMergeListener.onMerged(merged, from, conflicts);
+		}
+	}
+
+	/** a body or section waiting to be written */
+	private static class Edit {
+		final Session session;
+		String text;
+		/** the text is based on the merge passed to the editor */
+		boolean takesMerge;
+
+		Edit(Session session, String text, boolean takesMerge) {
+			this.session = session;
+			this.text = text;
+			this.takesMerge = takesMerge;
+		}
+	}
+
+	private static PageSaver sInstance = null;
+
+	private final Context mContext;
+	private final Handler mHandler;
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	/** the edits of each page waiting to be written, guarded by itself */
+	private final Map<Long, List<Edit>> mPending = new HashMap<Long, List<Edit>>();
+	// only used on the saver thread
+	private DatabaseController mDatabase = null;
+
+	public static synchronized PageSaver getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new PageSaver(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private PageSaver(Context context) {
+		mContext = context;
+		HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * Queues a body, or the section of a large page, to be saved. The rest
+	 * of a page edited by section is kept. Returns at once.
+	 *
+	 * @param session
+	 *            what the text is based on, it moves on to the text once that
+	 *            is written
+	 */
+	public void save(long rowId, Session session, String text) {
+		queue(rowId, new Edit(session, text, false));
+	}
+
+	/**
+	 * Queues a body the editor made from a merge passed to its
+	 * {@link MergeListener}, the following saves are based on the merge.
+	 */
+	public void saveMerged(long rowId, Session session, String text) {
+		queue(rowId, new Edit(session, text, true));
+	}
+
+	private void queue(final long rowId, Edit edit) {
+		synchronized (mPending) {
+			List<Edit> edits = mPending.get(rowId);
+			if (edits != null) {
+				// the queued save writes this edit, too
+				Edit last = edits.get(edits.size() - 1);
+				if (last.session == edit.session) {
+					last.text = edit.text;
+					last.takesMerge |= edit.takesMerge;
+				} else {
+					edits.add(edit);
+				}
+				return;
+			}
+			edits = new ArrayList<Edit>();
+			edits.add(edit);
+			mPending.put(rowId, edits);
+		}
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				List<Edit> edits;
+				synchronized (mPending) {
+					edits = mPending.remove(rowId);
+				}
+				final long start = System.nanoTime();
+				try {
+					boolean updated = false;
+					for (Edit edit : edits) {
+						updated |= (edit.session.mSectionStart < 0) ? writeBody(rowId, edit)
+								: writeSection(rowId, edit);
+					}
+					Log.d(TAG, "page #" + rowId + (updated ? " saved in " : " unchanged after ")
+							+ ((System.nanoTime() - start) / 1000000L) + " ms");
+				} catch (Exception e) {
+					Log.e(TAG, "page #" + rowId + " not saved: " + e.getMessage(), e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes an edited body, on the saver thread. If a sync replaced the
+	 * body the edit is based on, the edit is merged into the stored body.
+	 * The session moves on to the merge, which is passed to the editor with
+	 * the conflicts marked.
+	 *
+	 * @return <code>true</code> if the body was written
+	 */
+	private boolean writeBody(long rowId, Edit edit) {
+		final DatabaseController database = getDatabase();
+		final Session session = edit.session;
+		final String textHash = ContentHash.of(edit.text);
+		if (edit.takesMerge) {
+			session.clearMerge();
+		}
+		// an editor which hasn't taken a merge yet is still on its own text
+		String baseText = (session.mEditorText != null) ? session.mEditorText : session.mBaseText;
+		String baseHash = (session.mEditorText != null) ? ContentHash.of(session.mEditorText)
+				: session.getBaseHash();
+		String body = edit.text;
+		ThreeWayMerge.Result merge = null;
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			if (database.updatePageBody(rowId, baseHash, body)) {
+				if (merge == null) {
+					session.rebase(body, textHash);
+					session.clearMerge();
+				} else {
+					passMerge(session, body, ContentHash.of(body), edit.text, merge.conflicts);
+				}
+				return true;
+			}
+			WikiPage stored = database.getPage(rowId);
+			if (stored == null) {
+				return false;
+			}
+			if (textHash.equals(stored.bodyHash)) {
+				session.rebase(edit.text, textHash);
+				session.clearMerge();
+				return false;
+			}
+			merge = ThreeWayMerge.merge(baseText, edit.text, stored.getBody());
+			Log.w(TAG, "page #" + rowId + " changed by a sync, merged with "
+					+ merge.conflicts + " conflicts");
+			body = merge.text;
+			baseHash = stored.bodyHash;
+			if (ContentHash.of(body).equals(stored.bodyHash)) {
+				// the sync brought the edit already, nothing to write
+				passMerge(session, body, stored.bodyHash, edit.text, merge.conflicts);
+				return false;
+			}
+		}
+		Log.w(TAG, "page #" + rowId + " keeps changing, not saved");
+		return false;
+	}
+
+	/**
+	 * Moves the session on to a merge as stored and passes it to the
+	 * editor, on the saver thread.
+	 */
+	private void passMerge(final Session session, String merged, String hash,
+			String from, int conflicts) {
+		session.rebase(merged, hash);
+		session.setMerged(merged, from, conflicts);
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				session.deliverMerge();
+			}
+		});
+	}
+
+	/**
+	 * Writes an edited section into the stored body, on the saver thread.
+	 * The section is only replaced where it was read, if the page didn't
+	 * change since. Otherwise the edit is kept as a conflict at the end of
+	 * the page, it is resolved in the editor before the page is uploaded.
+	 *
+	 * @return <code>true</code> if the body was written
+	 */
+	private boolean writeSection(long rowId, Edit edit) {
+		final DatabaseController database = getDatabase();
+		final Session session = edit.session;
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			WikiPage page = loadPage(rowId);
+			if (page == null) {
+				return false;
+			}
+			String body = page.getBody();
+			int start = session.mSectionStart;
+			String replaced = null;
+			if ((session.mBaseHash == null) || session.mBaseHash.equals(page.bodyHash)) {
+				replaced = PageSections.replace(body, start, session.mSectionText, edit.text);
+			}
+			if (replaced == null) {
+				Log.w(TAG, "page #" + rowId + ": section at " + start
+						+ " changed by a sync, keeping the edit as a conflict");
+				StringBuilder conflict = new StringBuilder(body.length()
+						+ edit.text.length() + 64);
+				conflict.append(body);
+				if ((body.length() > 0) && (body.charAt(body.length() - 1) != '\n')) {
+					conflict.append('\n');
+				}
+				conflict.append(ThreeWayMerge.MARKER_LOCAL).append('\n');
+				start = conflict.length();
+				conflict.append(edit.text).append('\n');
+				conflict.append(ThreeWayMerge.MARKER_SEPARATOR).append('\n');
+				conflict.append(ThreeWayMerge.MARKER_REMOTE).append('\n');
+				replaced = conflict.toString();
+			}
+			final String hash = ContentHash.of(replaced);
+			if (database.updatePageBody(rowId, page.bodyHash, replaced)) {
+				// later saves of the section go where this one went
+				session.mSectionStart = start;
+				session.mSectionText = edit.text;
+				session.mBaseHash = hash;
+				return true;
+			}
+			WikiPage stored = database.getPageInfo(rowId);
+			if ((stored == null) || hash.equals(stored.bodyHash)) {
+				return false;
+			}
+		}
+		Log.w(TAG, "page #" + rowId + " keeps changing, not saved");
+		return false;
+	}
+
+	/**
+	 * Loads a page after all saves queued before are written. A page in the
+	 * {@link PageCache} is passed to the callback at once, unless it has to
+	 * be split into sections.
+	 */
+	public void load(final long rowId, final LoadCallback callback) {
+		final PageCache cache = PageCache.getInstance();
+		boolean pending;
+		synchronized (mPending) {
+			pending = mPending.containsKey(rowId);
+		}
+		WikiPage cached = pending ? null : cache.get(rowId);
+		if ((cached != null) && !PageSections.isLarge(cached.getBody())) {
+			callback.onLoaded(cached, null);
+			return;
+		}
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				final WikiPage page = loadPage(rowId);
+				final List<PageSections.Section> sections = ((page != null) && PageSections
+						.isLarge(page.getBody())) ? PageSections.split(page.getBody()) : null;
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						callback.onLoaded(page, sections);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Runs a task on the saver thread, after all saves queued before are
+	 * written.
+	 */
+	public <T> void runAfterSaves(final Task<T> task) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				T result = null;
+				try {
+					result = task.run(getDatabase());
+				} catch (Exception e) {
+					Log.e(TAG, "task failed: " + e.getMessage(), e);
+				}
+				final T done = result;
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						task.onDone(done);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Loads a page from the cache or the database, on the saver thread.
+	 */
+	WikiPage loadPage(long rowId) {
+		PageCache cache = PageCache.getInstance();
+		WikiPage page = cache.get(rowId);
+		if (page == null) {
+			final long generation = cache.getGeneration();
+			page = getDatabase().getPage(rowId);
+			if (page != null) {
+				// inflate here, not on the main thread
+				page.getBody();
+				cache.put(page, generation);
+			}
+		}
+		return page;
+	}
+
+	private DatabaseController getDatabase() {
+		if (mDatabase == null) {
+			// lives as long as the process
+			mDatabase = new DatabaseController(mContext).open();
+		}
+		return mDatabase;
+	}
+
+}
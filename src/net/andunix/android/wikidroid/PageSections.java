@@ -0,0 +1,158 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits large pages into sections which can be edited one at a time.
+ * <p>
+ * A section starts at a DokuWiki heading like <code>== Title ==</code>, the
+ * text before the first heading is a section without title. Sections longer
+ * than {@link #MAX_SECTION_CHARS} are split into parts, at line ends where
+ * possible, so a generated table or log without headings can be edited, too.
+ */
+public class PageSections {
+
+	/** pages longer than this are edited by section */
+	public static final int LARGE_PAGE_CHARS = 64 * 1024;
+	static final int MAX_SECTION_CHARS = 16 * 1024;
+
+	public static class Section {
+		/** the offset of the section in the body */
+		public final int start;
+		public final int end;
+		/** the heading, <code>null</code> for the text before the first one */
+		public final String title;
+		/** counts from 1 if the section is split into parts, 0 otherwise */
+		public final int part;
+
+		Section(int start, int end, String title, int part) {
+			this.start = start;
+			this.end = end;
+			this.title = title;
+			this.part = part;
+		}
+	}
+
+	private PageSections() {}
+
+	public static boolean isLarge(String body) {
+		return (body != null) && (body.length() > LARGE_PAGE_CHARS);
+	}
+
+	/**
+	 * @return the sections of the body in order, together they cover all of it
+	 */
+	public static List<Section> split(String body) {
+		List<Section> sections = new ArrayList<Section>();
+		final int length = body.length();
+		int start = 0;
+		String title = null;
+		int lineStart = 0;
+		while (lineStart <= length) {
+			int lineEnd = body.indexOf('\n', lineStart);
+			if (lineEnd < 0) {
+				lineEnd = length;
+			}
+			String heading = getHeading(body, lineStart, lineEnd);
+			if ((heading != null) && (lineStart > start)) {
+				addSection(sections, body, start, lineStart, title);
+				start = lineStart;
+			}
+			if (heading != null) {
+				title = heading;
+			}
+			lineStart = lineEnd + 1;
+		}
+		if ((start < length) || sections.isEmpty()) {
+			addSection(sections, body, start, length, title);
+		}
+		return sections;
+	}
+
+	/**
+	 * Adds a section, in parts if it is too long.
+	 */
+	private static void addSection(List<Section> sections, String body, int start,
+			int end, String title) {
+		if (end - start <= MAX_SECTION_CHARS) {
+			sections.add(new Section(start, end, title, 0));
+			return;
+		}
+		int part = 1;
+		while (start < end) {
+			int partEnd = end;
+			if (end - start > MAX_SECTION_CHARS) {
+				partEnd = body.lastIndexOf('\n', start + MAX_SECTION_CHARS - 1) + 1;
+				if (partEnd - start < MAX_SECTION_CHARS / 2) {
+					// very long lines, cut within one
+					partEnd = start + MAX_SECTION_CHARS;
+					if (Character.isLowSurrogate(body.charAt(partEnd))) {
+						partEnd--;
+					}
+				}
+			}
+			sections.add(new Section(start, partEnd, title, part++));
+			start = partEnd;
+		}
+	}
+
+	/**
+	 * @return the title if the line is a heading, <code>null</code> otherwise
+	 */
+	private static String getHeading(String body, int start, int end) {
+		while ((end > start) && Character.isWhitespace(body.charAt(end - 1))) {
+			end--;
+		}
+		if ((end - start < 4) || !body.startsWith("==", start)
+				|| !body.startsWith("==", end - 2)) {
+			return null;
+		}
+		while ((start < end) && (body.charAt(start) == '=')) {
+			start++;
+		}
+		while ((end > start) && (body.charAt(end - 1) == '=')) {
+			end--;
+		}
+		String title = body.substring(start, end).trim();
+		return (title.length() == 0) ? null : title;
+	}
+
+	/**
+	 * Replaces a section that was read at <code>start</code> with its edited
+	 * text. A section which is not there any more is not looked for
+	 * elsewhere, the same text may be another part of the page.
+	 *
+	 * @return the new body, or <code>null</code> if the section is not at
+	 *         <code>start</code>
+	 */
+	public static String replace(String body, int start, String original, String edited) {
+		if ((start < 0) || !body.startsWith(original, start)) {
+			return null;
+		}
+		StringBuilder result = new StringBuilder(body.length() - original.length()
+				+ edited.length());
+		result.append(body, 0, start);
+		result.append(edited);
+		result.append(body, start + original.length(), body.length());
+		return result.toString();
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+
+/**
+ * Row id and timestamps of all stored pages, without their bodies.
+ * <p>
+ * Names are kept in a sorted array and looked up by binary search, the
+ * numbers in one flat <code>long[]</code>, so a snapshot of a large wiki
+ * stays small.
+ */
+public class PageSnapshot {
+
+	private static final int ID = 0;
+	private static final int CHANGED_AT = 1;
+	private static final int REMOTE_CHANGED_AT = 2;
+	private static final int SYNCED_AT = 3;
+	private static final int STRIDE = 4;
+
+	private final String[] mNames;
+	private final long[] mValues;
+
+	/**
+	 * @param names
+	 *            page names
+	 * @param values
+	 *            row id, changed at, remote changed at and synced at of each
+	 *            page
+	 */
+	PageSnapshot(String[] names, long[] values) {
+		if (isSorted(names)) {
+			mNames = names;
+			mValues = values;
+		} else {
+			// SQLite sorts by UTF-8 bytes, Java by UTF-16 chars
+			final String[] unsorted = names;
+			Integer[] order = new Integer[names.length];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return unsorted[a].compareTo(unsorted[b]);
+				}
+			});
+			mNames = new String[names.length];
+			mValues = new long[values.length];
+			for (int i = 0; i < order.length; i++) {
+				mNames[i] = names[order[i]];
+				System.arraycopy(values, order[i] * STRIDE, mValues, i * STRIDE, STRIDE);
+			}
+		}
+	}
+
+	public int size() {
+		return mNames.length;
+	}
+
+	public boolean contains(String name) {
+		return Arrays.binarySearch(mNames, name) >= 0;
+	}
+
+	/**
+	 * Creates a page with the stored row id and timestamps, but without body.
+	 *
+	 * @return the page or <code>null</code> if there is no such page
+	 */
+	public WikiPage getPage(String name) {
+		int index = Arrays.binarySearch(mNames, name);
+		if (index < 0) {
+			return null;
+		}
+		final int offset = index * STRIDE;
+		WikiPage page = new WikiPage();
+		page.id = mValues[offset + ID];
+		page.name = mNames[index];
+		page.localChangedAt = new Date(mValues[offset + CHANGED_AT]);
+		page.remoteChangedAt = new Date(mValues[offset + REMOTE_CHANGED_AT]);
+		page.syncedAt = new Date(mValues[offset + SYNCED_AT]);
+		return page;
+	}
+
+	private static boolean isSorted(String[] names) {
+		for (int i = 1; i < names.length; i++) {
+			if (names[i - 1].compareTo(names[i]) >= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
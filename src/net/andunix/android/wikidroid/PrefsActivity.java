@@ -17,14 +17,21 @@
 
 package net.andunix.android.wikidroid;
 
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Bundle;
+import android.os.Process;
 import android.preference.PreferenceActivity;
 
-public class PrefsActivity extends PreferenceActivity {
+public class PrefsActivity extends PreferenceActivity implements
+		OnSharedPreferenceChangeListener {
 	public static final String PREF_WIKI_URL = "wiki_url";
 	public static final String PREF_WIKI_USER = "wiki_user";
 	public static final String PREF_WIKI_PASSWD = "wiki_passwd";
 	public static final String PREF_WIKI_TYPE = "wiki_type";
+	public static final String PREF_SYNC_THREADS = "sync_threads";
+	public static final String PREF_COMPRESS_PAGES = "compress_pages";
+	public static final String PREF_INDEX_BODIES = "index_bodies";
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -32,4 +39,45 @@ public class PrefsActivity extends PreferenceActivity {
 		// Load the preferences from an XML resource
 		addPreferencesFromResource(R.xml.prefs);
 	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		getPreferenceScreen().getSharedPreferences()
+				.registerOnSharedPreferenceChangeListener(this);
+	}
+
+	@Override
+	protected void onPause() {
+		getPreferenceScreen().getSharedPreferences()
+				.unregisterOnSharedPreferenceChangeListener(this);
+		super.onPause();
+	}
+
+	@Override
+	public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+		if (PREF_INDEX_BODIES.equals(key)) {
+			reindexBodies();
+		}
+	}
+
+	/**
+	 * Brings the search index in line with the preference in the
+	 * background, this may take longer than the activity is shown.
+	 */
+	private void reindexBodies() {
+		final DatabaseController database = new DatabaseController(getApplicationContext());
+		new Thread("ReindexBodies") {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				database.open();
+				try {
+					database.reindexBodies();
+				} finally {
+					database.close();
+				}
+			}
+		}.start();
+	}
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.andunix.android.wikidroid;
+
+import android.os.SystemClock;
+
+/**
+ * Token bucket limiting the request rate to a server.
+ * <p>
+ * Up to <code>burst</code> requests may go out at once, after that callers
+ * of {@link #acquire()} are held back to <code>rate</code> requests per
+ * second.
+ */
+public class RateLimiter {
+
+	private final double mRate;
+	private final double mBurst;
+	private double mTokens;
+	private long mLastRefill;
+
+	public RateLimiter(double rate, int burst) {
+		mRate = rate;
+		mBurst = burst;
+		mTokens = burst;
+		mLastRefill = SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Waits until a request may be sent.
+	 */
+	public void acquire() throws InterruptedException {
+		long wait;
+		synchronized (this) {
+			long now = SystemClock.elapsedRealtime();
+			mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * mRate / 1000.0);
+			mLastRefill = now;
+			// take the token now, a waiting caller owns it already
+			mTokens -= 1.0;
+			wait = (mTokens >= 0.0) ? 0L : (long) Math.ceil(-mTokens * 1000.0 / mRate);
+		}
+		if (wait > 0L) {
+			Thread.sleep(wait);
+		}
+	}
+
+}
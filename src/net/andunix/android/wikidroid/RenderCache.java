@@ -0,0 +1,258 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Rendered pages in the app's cache directory, one file per page named by
+ * its row id and the {@link ContentHash} of the body it was rendered from.
+ * <p>
+ * A render is only read if the hash matches the stored body, so an edited
+ * page is never shown as it was. The files are bounded by
+ * {@link #MAX_BYTES}, the least recently read are deleted first.
+ */
+public class RenderCache {
+
+	private static final String TAG = "RenderCache";
+	private static final String DIRECTORY = "rendered";
+	private static final String SUFFIX = ".html";
+	static final long MAX_BYTES = 4L * 1024L * 1024L;
+
+	private static RenderCache sInstance = null;
+
+	private final File mDirectory;
+	/** renders pages written by a sync, created on first use; guarded by this */
+	private Handler mUpdater = null;
+	/** the current render of each page, guarded by this */
+	private Map<Long, File> mFiles = null;
+	private long mBytes = 0;
+
+	public static synchronized RenderCache getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new RenderCache(new File(context.getCacheDir(), DIRECTORY));
+		}
+		return sInstance;
+	}
+
+	RenderCache(File directory) {
+		mDirectory = directory;
+	}
+
+	/**
+	 * @return the render of the page's body with this hash, <code>null</code>
+	 *         if it is not cached
+	 */
+	public String get(long rowId, String hash) {
+		File file;
+		synchronized (this) {
+			file = getFiles().get(rowId);
+			if ((file == null) || !file.getName().equals(getFileName(rowId, hash))) {
+				return null;
+			}
+			// read last, deleted last
+			file.setLastModified(System.currentTimeMillis());
+		}
+		try {
+			return read(file);
+		} catch (IOException e) {
+			Log.w(TAG, "can't read " + file + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Renders a page and caches it.
+	 *
+	 * @return the render
+	 */
+	public String render(WikiPage page) {
+		final long start = System.nanoTime();
+		String html = WikiRenderer.render(page.name, page.getBody());
+		String hash = (page.bodyHash == null) ? ContentHash.of(page.getBody()) : page.bodyHash;
+		put(page.id, hash, html);
+		Log.d(TAG, page.name + " rendered in " + ((System.nanoTime() - start) / 1000000L) + " ms");
+		return html;
+	}
+
+	/**
+	 * Renders a page written by a sync again, if it was rendered before. Other
+	 * pages are only rendered once they are viewed. The render is done on a
+	 * background thread, the sync doesn't wait for it.
+	 */
+	public void update(final WikiPage page) {
+		String hash = (page.bodyHash == null) ? ContentHash.of(page.getBody()) : page.bodyHash;
+		Handler updater;
+		synchronized (this) {
+			File file = getFiles().get(page.id);
+			if ((file == null) || file.getName().equals(getFileName(page.id, hash))) {
+				return;
+			}
+			if (mUpdater == null) {
+				HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+				thread.start();
+				mUpdater = new Handler(thread.getLooper());
+			}
+			updater = mUpdater;
+		}
+		updater.post(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					render(page);
+				} catch (RuntimeException e) {
+					// the page is rendered when it is viewed
+					Log.e(TAG, page.name + " not rendered: " + e.getMessage(), e);
+				}
+			}
+		});
+	}
+
+	private void put(long rowId, String hash, String html) {
+		File file = new File(mDirectory, getFileName(rowId, hash));
+		File temp = new File(mDirectory, file.getName() + ".tmp");
+		synchronized (this) {
+			Map<Long, File> files = getFiles();
+			File old = files.remove(rowId);
+			if (old != null) {
+				mBytes -= old.length();
+				old.delete();
+			}
+			try {
+				mDirectory.mkdirs();
+				write(temp, html);
+				if (!temp.renameTo(file)) {
+					throw new IOException("can't rename " + temp);
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "can't write " + file + ": " + e.getMessage());
+				temp.delete();
+				return;
+			}
+			files.put(rowId, file);
+			mBytes += file.length();
+			trim();
+		}
+	}
+
+	/**
+	 * Deletes the least recently read files until the cache fits.
+	 */
+	private void trim() {
+		if (mBytes <= MAX_BYTES) {
+			return;
+		}
+		File[] files = mFiles.values().toArray(new File[mFiles.size()]);
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long ma = a.lastModified();
+				long mb = b.lastModified();
+				return (ma < mb) ? -1 : ((ma == mb) ? 0 : 1);
+			}
+		});
+		for (int i = 0; (i < files.length) && (mBytes > MAX_BYTES); i++) {
+			mBytes -= files[i].length();
+			mFiles.remove(getRowId(files[i]));
+			files[i].delete();
+		}
+	}
+
+	/**
+	 * Lists the cached files on first use, guarded by this.
+	 */
+	private Map<Long, File> getFiles() {
+		if (mFiles == null) {
+			mFiles = new HashMap<Long, File>();
+			mBytes = 0;
+			File[] files = mDirectory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					Long rowId = getRowId(file);
+					if ((rowId == null) || mFiles.containsKey(rowId)) {
+						// a left over temp file or render
+						file.delete();
+						continue;
+					}
+					mFiles.put(rowId, file);
+					mBytes += file.length();
+				}
+			}
+		}
+		return mFiles;
+	}
+
+	private static String getFileName(long rowId, String hash) {
+		return rowId + "-" + hash + SUFFIX;
+	}
+
+	private static Long getRowId(File file) {
+		String name = file.getName();
+		int dash = name.indexOf('-');
+		if ((dash < 0) || !name.endsWith(SUFFIX)) {
+			return null;
+		}
+		try {
+			return Long.valueOf(name.substring(0, dash));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static String read(File file) throws IOException {
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			StringBuilder result = new StringBuilder((int) file.length());
+			char[] buffer = new char[8192];
+			int count;
+			while ((count = reader.read(buffer)) > 0) {
+				result.append(buffer, 0, count);
+			}
+			return result.toString();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static void write(File file, String text) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write(text);
+		} finally {
+			writer.close();
+		}
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Turns user input into an FTS3 <code>MATCH</code> expression and ranks
+ * the hits.
+ * <p>
+ * Hits are ranked by the number of times each term occurs in a page,
+ * weighted by how rare the term is, and occurrences in the page name count
+ * {@link #NAME_WEIGHT} times as much as in the body.
+ */
+public class SearchQuery {
+
+	/** the snippet marks the matched terms with these */
+	public static final char MATCH_START = '\u0001';
+	public static final char MATCH_END = '\u0002';
+	public static final String ELLIPSIS = "\u2026";
+
+	static final int NAME_WEIGHT = 10;
+	/** shorter prefixes expand to too many terms to be fast */
+	static final int MIN_PREFIX_LENGTH = 3;
+	/** the column of the page name in the full-text index */
+	private static final int NAME_COLUMN = 0;
+
+	private SearchQuery() {}
+
+	/**
+	 * Builds a <code>MATCH</code> expression finding the pages which contain
+	 * all words of the input. The last word is matched as prefix once it has
+	 * {@link #MIN_PREFIX_LENGTH} chars, so results show up while it is typed.
+	 * Operators and quotes are dropped, they would only make invalid
+	 * expressions.
+	 *
+	 * @return the expression or <code>null</code> if there are no words
+	 */
+	public static String toMatchExpression(String input) {
+		if (input == null) {
+			return null;
+		}
+		StringBuilder match = new StringBuilder();
+		final int length = input.length();
+		int lastLength = 0;
+		int i = 0;
+		while (i < length) {
+			while ((i < length) && !Character.isLetterOrDigit(input.charAt(i))) {
+				i++;
+			}
+			int start = i;
+			while ((i < length) && Character.isLetterOrDigit(input.charAt(i))) {
+				i++;
+			}
+			if (i > start) {
+				if (match.length() > 0) {
+					match.append(' ');
+				}
+				// lower case, so words like OR and NOT are no operators
+				match.append(input.substring(start, i).toLowerCase());
+				lastLength = i - start;
+			}
+		}
+		if (match.length() == 0) {
+			return null;
+		}
+		if (lastLength >= MIN_PREFIX_LENGTH) {
+			match.append('*');
+		}
+		return match.toString();
+	}
+
+	/**
+	 * Scores a hit from the default <code>matchinfo()</code> blob: the
+	 * number of phrases and columns, followed by the hits in this row, the
+	 * hits in all rows and the rows with hits, for each phrase and column.
+	 */
+	public static float scoreMatchinfo(byte[] matchinfo) {
+		ByteBuffer buffer = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+		final int phrases = buffer.getInt(0);
+		final int columns = buffer.getInt(4);
+		float score = 0f;
+		for (int phrase = 0; phrase < phrases; phrase++) {
+			for (int column = 0; column < columns; column++) {
+				int offset = 4 * (2 + 3 * (phrase * columns + column));
+				int hits = buffer.getInt(offset);
+				int rows = buffer.getInt(offset + 8);
+				if (hits > 0) {
+					float weight = (column == NAME_COLUMN) ? NAME_WEIGHT : 1f;
+					score += weight * hits / rows;
+				}
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * Scores a hit from the <code>offsets()</code> string, for SQLite
+	 * versions without <code>matchinfo()</code>. It holds four numbers per
+	 * occurrence: the column, the term, its byte offset and its size. As the
+	 * rows with hits are not known, the terms are not weighted.
+	 */
+	public static float scoreOffsets(String offsets) {
+		if (offsets.length() == 0) {
+			return 0f;
+		}
+		float score = 0f;
+		int field = 0;
+		int value = 0;
+		final int length = offsets.length();
+		for (int i = 0; i <= length; i++) {
+			char c = (i < length) ? offsets.charAt(i) : ' ';
+			if (c != ' ') {
+				value = value * 10 + (c - '0');
+				continue;
+			}
+			if (field % 4 == 0) {
+				score += (value == NAME_COLUMN) ? NAME_WEIGHT : 1f;
+			}
+			field++;
+			value = 0;
+		}
+		return score;
+	}
+
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+import org.xmlrpc.android.XMLRPCException;
+import org.xmlrpc.android.XMLRPCFault;
+
+import android.util.Xml;
+
+/**
+ * XML-RPC client which parses responses with a pull parser while they are
+ * read from the network.
+ * <p>
+ * {@link #callStreaming(String, Object[], ValueHandler)} hands every element
+ * of an array result to a {@link ValueHandler} as soon as it is parsed, so a
+ * huge result like <code>wiki.getAllPages</code> never has to be in memory as
+ * a whole. Values are mapped to the same types {@link org.xmlrpc.android.XMLRPCClient}
+ * uses: structs become {@link HashMap}s and arrays <code>Object[]</code>s.
+ */
+public class StreamingXmlRpcClient {
+
+	public interface ValueHandler {
+		/** called for each element of the array result, in order */
+		public void onValue(Object value) throws Exception;
+	}
+
+	private static final String TAG_VALUE = "value";
+
+	private final URI mUri;
+	private final HttpClient mHttpClient;
+
+	public StreamingXmlRpcClient(URI uri, HttpClient httpClient) {
+		mUri = uri;
+		mHttpClient = httpClient;
+	}
+
+	/**
+	 * Calls a method which returns an array and passes the array elements to
+	 * the handler while the response is parsed.
+	 */
+	public void callStreaming(String method, Object[] params, ValueHandler handler)
+			throws XMLRPCException {
+		HttpEntity entity = null;
+		try {
+			HttpPost post = new HttpPost(mUri);
+			post.addHeader("Content-Type", "text/xml");
+			post.setEntity(new StringEntity(serializeCall(method, params), "UTF-8"));
+			HttpResponse response = mHttpClient.execute(post);
+			entity = response.getEntity();
+			int status = response.getStatusLine().getStatusCode();
+			if (status != HttpStatus.SC_OK) {
+				throw new XMLRPCException("HTTP status code: "+status);
+			}
+			InputStream in = entity.getContent();
+			XmlPullParser parser = Xml.newPullParser();
+			parser.setInput(in, null);
+			parseResponse(parser, handler);
+		} catch (XMLRPCException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new XMLRPCException(e);
+		} finally {
+			if (entity != null) {
+				try {
+					entity.consumeContent();
+				} catch (IOException e) {} // ignored
+			}
+		}
+	}
+
+	private void parseResponse(XmlPullParser parser, ValueHandler handler)
+			throws Exception {
+		parser.nextTag();
+		parser.require(XmlPullParser.START_TAG, null, "methodResponse");
+		parser.nextTag();
+		if ("fault".equals(parser.getName())) {
+			parser.nextTag();
+			@SuppressWarnings("unchecked")
+			Map<String, Object> fault = (Map<String, Object>) parseValue(parser);
+			Object code = fault.get("faultCode");
+			throw new XMLRPCFault((String) fault.get("faultString"),
+					code instanceof Integer ? (Integer) code : 0);
+		}
+		parser.require(XmlPullParser.START_TAG, null, "params");
+		parser.nextTag();
+		parser.require(XmlPullParser.START_TAG, null, "param");
+		parser.nextTag();
+		parser.require(XmlPullParser.START_TAG, null, TAG_VALUE);
+		parser.nextTag();
+		parser.require(XmlPullParser.START_TAG, null, "array");
+		parser.nextTag();
+		parser.require(XmlPullParser.START_TAG, null, "data");
+		while (parser.nextTag() == XmlPullParser.START_TAG) {
+			handler.onValue(parseValue(parser));
+		}
+	}
+
+	/**
+	 * Parses a <code>&lt;value&gt;</code>, the parser is positioned on its
+	 * start tag and is left on its end tag.
+	 */
+	private Object parseValue(XmlPullParser parser) throws XmlPullParserException,
+			IOException, XMLRPCException {
+		parser.require(XmlPullParser.START_TAG, null, TAG_VALUE);
+		int event = parser.next();
+		if (event == XmlPullParser.END_TAG) {
+			return "";
+		}
+		if (event == XmlPullParser.TEXT) {
+			String text = parser.getText();
+			event = parser.next();
+			if (event == XmlPullParser.END_TAG) {
+				// no type means string
+				return text;
+			}
+		}
+		Object result;
+		String type = parser.getName();
+		if ("struct".equals(type)) {
+			result = parseStruct(parser);
+		} else if ("array".equals(type)) {
+			result = parseArray(parser);
+		} else {
+			result = parseScalar(type, parser.nextText());
+		}
+		parser.nextTag();
+		return result;
+	}
+
+	private HashMap<String, Object> parseStruct(XmlPullParser parser)
+			throws XmlPullParserException, IOException, XMLRPCException {
+		HashMap<String, Object> result = new HashMap<String, Object>();
+		while (parser.nextTag() == XmlPullParser.START_TAG) {
+			parser.require(XmlPullParser.START_TAG, null, "member");
+			parser.nextTag();
+			parser.require(XmlPullParser.START_TAG, null, "name");
+			String name = parser.nextText();
+			parser.nextTag();
+			result.put(name, parseValue(parser));
+			parser.nextTag();
+		}
+		return result;
+	}
+
+	private Object[] parseArray(XmlPullParser parser)
+			throws XmlPullParserException, IOException, XMLRPCException {
+		List<Object> result = new ArrayList<Object>();
+		parser.nextTag();
+		parser.require(XmlPullParser.START_TAG, null, "data");
+		while (parser.nextTag() == XmlPullParser.START_TAG) {
+			result.add(parseValue(parser));
+		}
+		parser.nextTag();
+		return result.toArray();
+	}
+
+	private Object parseScalar(String type, String text) throws XMLRPCException {
+		if ("string".equals(type)) {
+			return text;
+		} else if ("int".equals(type) || "i4".equals(type)) {
+			return Integer.valueOf(text.trim());
+		} else if ("i8".equals(type)) {
+			return Long.valueOf(text.trim());
+		} else if ("boolean".equals(type)) {
+			return "1".equals(text.trim());
+		} else if ("double".equals(type)) {
+			return Double.valueOf(text.trim());
+		} else if ("dateTime.iso8601".equals(type)) {
+			return parseDate(text.trim());
+		} else if ("base64".equals(type)) {
+			return decodeBase64(text);
+		} else if ("nil".equals(type)) {
+			return null;
+		}
+		throw new XMLRPCException("unknown type: "+type);
+	}
+
+	/**
+	 * Decodes base64, skipping line breaks and other whitespace.
+	 * android.util.Base64 needs Android 2.2.
+	 */
+	private static byte[] decodeBase64(String text) throws XMLRPCException {
+		byte[] out = new byte[text.length() * 3 / 4];
+		int length = 0;
+		int bits = 0;
+		int count = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			int value;
+			if ((c >= 'A') && (c <= 'Z')) {
+				value = c - 'A';
+			} else if ((c >= 'a') && (c <= 'z')) {
+				value = c - 'a' + 26;
+			} else if ((c >= '0') && (c <= '9')) {
+				value = c - '0' + 52;
+			} else if (c == '+') {
+				value = 62;
+			} else if (c == '/') {
+				value = 63;
+			} else if ((c == '=') || Character.isWhitespace(c)) {
+				continue;
+			} else {
+				throw new XMLRPCException("bad base64 character: "+c);
+			}
+			bits = (bits << 6) | value;
+			if (++count == 4) {
+				out[length++] = (byte) (bits >> 16);
+				out[length++] = (byte) (bits >> 8);
+				out[length++] = (byte) bits;
+				bits = 0;
+				count = 0;
+			}
+		}
+		if (count == 3) {
+			out[length++] = (byte) (bits >> 10);
+			out[length++] = (byte) (bits >> 2);
+		} else if (count == 2) {
+			out[length++] = (byte) (bits >> 4);
+		} else if (count == 1) {
+			throw new XMLRPCException("truncated base64");
+		}
+		byte[] result = new byte[length];
+		System.arraycopy(out, 0, result, 0, length);
+		return result;
+	}
+
+	private static Date parseDate(String text) throws XMLRPCException {
+		// DokuWiki sends 20110412T10:20:30, newer versions 2011-04-12T10:20:30Z
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HH:mm:ss");
+		if (text.endsWith("Z")) {
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			text = text.substring(0, text.length() - 1);
+		}
+		try {
+			return format.parse(text.replace("-", ""));
+		} catch (ParseException e) {
+			throw new XMLRPCException(e);
+		}
+	}
+
+	private String serializeCall(String method, Object[] params) throws IOException {
+		StringWriter writer = new StringWriter();
+		XmlSerializer serializer = Xml.newSerializer();
+		serializer.setOutput(writer);
+		serializer.startDocument(null, null);
+		serializer.startTag(null, "methodCall");
+		serializer.startTag(null, "methodName").text(method).endTag(null, "methodName");
+		serializer.startTag(null, "params");
+		for (Object param : params) {
+			serializer.startTag(null, "param");
+			serializeValue(serializer, param);
+			serializer.endTag(null, "param");
+		}
+		serializer.endTag(null, "params");
+		serializer.endTag(null, "methodCall");
+		serializer.endDocument();
+		return writer.toString();
+	}
+
+	private void serializeValue(XmlSerializer serializer, Object value) throws IOException {
+		serializer.startTag(null, TAG_VALUE);
+		if (value instanceof Integer) {
+			serializer.startTag(null, "i4").text(value.toString()).endTag(null, "i4");
+		} else if (value instanceof Boolean) {
+			serializer.startTag(null, "boolean").text((Boolean) value ? "1" : "0")
+					.endTag(null, "boolean");
+		} else if (value instanceof Map) {
+			serializer.startTag(null, "struct");
+			for (Map.Entry<?, ?> member : ((Map<?, ?>) value).entrySet()) {
+				serializer.startTag(null, "member");
+				serializer.startTag(null, "name").text(member.getKey().toString())
+						.endTag(null, "name");
+				serializeValue(serializer, member.getValue());
+				serializer.endTag(null, "member");
+			}
+			serializer.endTag(null, "struct");
+		} else if (value instanceof Object[]) {
+			serializer.startTag(null, "array");
+			serializer.startTag(null, "data");
+			for (Object element : (Object[]) value) {
+				serializeValue(serializer, element);
+			}
+			serializer.endTag(null, "data");
+			serializer.endTag(null, "array");
+		} else {
+			serializer.startTag(null, "string").text(String.valueOf(value))
+					.endTag(null, "string");
+		}
+		serializer.endTag(null, TAG_VALUE);
+	}
+
+}
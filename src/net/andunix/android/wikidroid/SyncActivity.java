@@ -17,21 +17,21 @@
 
 package net.andunix.android.wikidroid;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.PrintWriter;
-import java.net.URI;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
-
-import org.xmlrpc.android.XMLRPCClient;
 
 import android.app.Activity;
-import android.content.SharedPreferences;
+import android.content.Context;
 import android.os.Bundle;
 import android.os.Environment;
-import android.preference.PreferenceManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.PrintWriterPrinter;
 import android.util.Printer;
 import android.view.Menu;
@@ -43,58 +43,233 @@ public class SyncActivity extends Activity {
 	public static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
 	
     private static final int MAX_LOG_LINES = 32;
+    /** redraw the log at most once per frame */
+    private static final long FRAME_MILLIS = 16L;
+    /** flush the log file at most this often */
+    private static final long FLUSH_MILLIS = 1000L;
     private static final int MENU_CANCEL_ID = Menu.FIRST;
     
-    private static final String[] ACTION_NAMES = {
-    	"NONE",
-    	"DOWNLOAD",
-    	"UPLOAD",
-    	"MERGE"
-    };
-    private static final int ACTION_NONE = 0;
-    private static final int ACTION_DOWNLOAD = 1;
-    private static final int ACTION_UPLOAD = 2;
-    private static final int ACTION_MERGE = 3;
-    
-	private XMLRPCClient client;
 	private TextView mSyncLogView;
-	private StringBuilder mSyncLog;
-	private Printer mLogPrinter = null;
-	private int mSyncLogLine = 0;
-	private int mSyncLogLines = 0;
-	private DatabaseController mDatabaseController;
+	private final Handler mHandler = new Handler();
+	/** the sync shown, it is handed on to the activity recreated by a rotation */
+	private SyncRun mRun;
+	// guarded by mRun.log
+	private boolean mRedrawPending = false;
+
+	private final Runnable mRedraw = new Runnable() {
+		@Override
+		public void run() {
+			int done;
+			int planned;
+			synchronized (mRun.log) {
+				mRedrawPending = false;
+				done = mRun.done;
+				planned = mRun.planned;
+			}
+			if (planned > 0) {
+				setTitle(getString(R.string.sync_progress, done, planned));
+			}
+			StringBuilder text = new StringBuilder();
+			mRun.log.appendTo(text);
+			mSyncLogView.setText(text);
+		}
+	};
+
+	/**
+	 * A running sync with its log. It lives as long as the sync, not as the
+	 * activity showing it.
+	 */
+	private static class SyncRun {
+		final LogLineBuffer log = new LogLineBuffer(MAX_LOG_LINES);
+		// guarded by log
+		int done = 0;
+		int planned = 0;
+		/** the activity showing the sync, <code>null</code> during a rotation */
+		volatile SyncActivity activity = null;
+		SyncEngine engine;
+		// the log file is written on its own thread
+		private final HandlerThread mLogThread;
+		private final Handler mLogHandler;
+		private PrintWriter mLogWriter = null;
+		private Printer mLogPrinter = null;
+		private boolean mFlushPending = false;
+		/** set once the log thread is told to quit, guarded by mLogHandler */
+		private boolean mLogClosed = false;
+
+		private final Runnable mFlush = new Runnable() {
+			@Override
+			public void run() {
+				mFlushPending = false;
+				if (mLogWriter != null) {
+					mLogWriter.flush();
+				}
+			}
+		};
+
+		SyncRun() {
+			mLogThread = new HandlerThread("SyncLogWriter");
+			mLogThread.start();
+			mLogHandler = new Handler(mLogThread.getLooper());
+			mLogHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					openLogFile();
+				}
+			});
+		}
+
+		/**
+		 * Runs the sync on its own thread, it reports back through the log.
+		 */
+		void start(Context context) {
+			log("*** Sync Starting ***");
+			// its own reference to the shared connection, the sync may outlive
+			// the activity for a moment
+			final DatabaseController database = new DatabaseController(context).open();
+			engine = new SyncEngine(context, database);
+			engine.setListener(new SyncEngine.Listener() {
+				@Override
+				public void onLog(String line) {
+					log(line);
+				}
+
+				@Override
+				public void onProgress(int done, int planned) {
+					synchronized (log) {
+						SyncRun.this.done = done;
+						SyncRun.this.planned = planned;
+					}
+					scheduleRedraw();
+				}
+			});
+			final SyncEngine engine = this.engine;
+			new Thread("SyncEngine") {
+				@Override
+				public void run() {
+					try {
+						engine.run();
+					} finally {
+						engine.close();
+						database.close();
+					}
+					log(engine.isCancelled() ? "*** Sync Cancelled ***" : "*** Sync Finished ***");
+				}
+			}.start();
+		}
+
+		/**
+		 * Opens the log file on external storage, runs on the log thread.
+		 */
+		private void openLogFile() {
+			String state = Environment.getExternalStorageState();
+			if (Environment.MEDIA_MOUNTED.equals(state)) {
+			    // We can read and write the media
+				try {
+					File logDir = new File(Environment.getExternalStorageDirectory(), "log");
+					if (!logDir.exists()) {
+						logDir.mkdirs();
+					}
+//					File logFile = File.createTempFile("sync_", ".log", logDir);
+					String fileName = dateFormat(DATE_FORMAT, new Date(), "");
+					fileName = fileName.replaceAll("[ ]", "_");
+					fileName = fileName.replaceAll("[:]", "");
+					fileName = "sync_"+fileName+"_log.txt";
+					File logFile = new File(logDir, fileName);
+					log("open log: "+fileName);
+					logFile.createNewFile();
+					mLogWriter = new PrintWriter(new BufferedWriter(new FileWriter(logFile)));
+					mLogPrinter = new PrintWriterPrinter(mLogWriter);
+				} catch (Exception ex) {
+					log("### "+ex);
+				}
+			}
+		}
+
+		/**
+		 * Closes the log file once the lines queued so far are written. Lines
+		 * logged later are dropped, the log thread is gone.
+		 */
+		void closeLog() {
+			synchronized (mLogHandler) {
+				if (mLogClosed) {
+					return;
+				}
+				mLogClosed = true;
+			}
+			mLogHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (mLogWriter != null) {
+						mLogWriter.close();
+						mLogWriter = null;
+						mLogPrinter = null;
+					}
+					Looper.myLooper().quit();
+				}
+			});
+		}
+
+		/**
+		 * Adds a line to the log. The view is redrawn once per frame at most
+		 * and the log file is written on the log thread, so this is cheap
+		 * enough to call for every page.
+		 */
+		void log(final String line) {
+			log.append(line);
+			scheduleRedraw();
+			synchronized (mLogHandler) {
+				if (mLogClosed) {
+					return;
+				}
+				mLogHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						writeLogLine(line);
+					}
+				});
+			}
+		}
+
+		void scheduleRedraw() {
+			SyncActivity a = activity;
+			if (a != null) {
+				a.scheduleRedraw();
+			}
+		}
+
+		private void writeLogLine(String line) {
+			if (mLogPrinter == null) {
+				return;
+			}
+			try {
+				mLogPrinter.println(line);
+			} catch (Exception ex) {} // ignored
+			if (!mFlushPending) {
+				mFlushPending = true;
+				mLogHandler.postDelayed(mFlush, FLUSH_MILLIS);
+			}
+		}
+	}
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
-		mDatabaseController = new DatabaseController(this).open();
 		setContentView(R.layout.sync);
-		mSyncLog = new StringBuilder();
-		mSyncLogLine = 0;
-		mSyncLogLines = 0;
 		mSyncLogView = (TextView) findViewById(R.id.textSyncLog);
-		String state = Environment.getExternalStorageState();
-		if (Environment.MEDIA_MOUNTED.equals(state)) {
-		    // We can read and write the media
-			try {
-				File logDir = new File(Environment.getExternalStorageDirectory(), "log");
-				if (!logDir.exists()) {
-					logDir.mkdirs();
-				}
-//				File logFile = File.createTempFile("sync_", ".log", logDir);
-				String fileName = dateFormat(DATE_FORMAT, new Date(), "");
-				fileName = fileName.replaceAll("[ ]", "_");
-				fileName = fileName.replaceAll("[:]", "");
-				fileName = "sync_"+fileName+"_log.txt";
-				File logFile = new File(logDir, fileName);
-				log("open log: "+fileName);
-				logFile.createNewFile();
-				PrintWriter pw = new PrintWriter(logFile);
-				mLogPrinter = new PrintWriterPrinter(pw);
-			} catch (Exception ex) {
-				log("### "+ex);
-			}
+		mRun = (SyncRun) getLastNonConfigurationInstance();
+		if (mRun == null) {
+			mRun = new SyncRun();
+			mRun.start(getApplicationContext());
 		}
+		mRun.activity = this;
+		// shows the log written so far
+		scheduleRedraw();
+	}
+
+	@Override
+	public Object onRetainNonConfigurationInstance() {
+		// a rotation doesn't stop the sync
+		return mRun;
 	}
 
 	@Override
@@ -106,7 +281,13 @@ public class SyncActivity extends Activity {
 
 	@Override
 	protected void onDestroy() {
-		mDatabaseController.close();
+		mRun.activity = null;
+		mHandler.removeCallbacks(mRedraw);
+		if (isFinishing()) {
+			// the sync keeps what it has done so far
+			mRun.engine.cancel();
+			mRun.closeLog();
+		}
 		super.onDestroy();
 	}
 
@@ -114,189 +295,24 @@ public class SyncActivity extends Activity {
 	public boolean onOptionsItemSelected(MenuItem item) {
         switch(item.getItemId()) {
         case MENU_CANCEL_ID:
+        	mRun.engine.cancel();
         	finish();
             return true;
     }
 		return super.onOptionsItemSelected(item);
 	}
 
-	@Override
-	protected void onPause() {
-		super.onPause();
-		client = null;
-		log("*** Sync Paused ***");
-	}
-
-	@Override
-	protected void onResume() {
-		super.onResume();
-		log("*** Sync Starting ***");
-		log("--- connect ---");
-		try {
-			SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-			String wiki_url = prefs.getString(PrefsActivity.PREF_WIKI_URL, "<unset>");
-			String wiki_user = prefs.getString(PrefsActivity.PREF_WIKI_USER, "");
-			String wiki_passwd = prefs.getString(PrefsActivity.PREF_WIKI_PASSWD, "");
-			log("wiki_url="+wiki_url);
-			String xmlrpc_url = wiki_url;
-			if (!xmlrpc_url.endsWith("/")) {
-				xmlrpc_url += "/";
-			}
-			xmlrpc_url += "lib/exe/xmlrpc.php";
-			log("xmlrpc_url="+xmlrpc_url);
-			URI uri = URI.create(xmlrpc_url);
-			if ((wiki_user == null) || (wiki_user.length() == 0)) {
-				log("opening XML-RPC client with no credentials");
-				client = new XMLRPCClient(uri);
-			} else {
-				log("opening XML-RPC client as "+wiki_user+"/"+wiki_passwd);
-//				client = new XMLRPCClient(uri, wiki_user, wiki_passwd);
-				client = new XMLRPCClient(uri);
-				Boolean loginResult = (Boolean) client.call("dokuwiki.login", wiki_user, wiki_passwd);
-				log("login: "+loginResult);
-			}
-			String rpcVersionSupported = client.call("wiki.getRPCVersionSupported").toString();
-			log("wiki.getRPCVersionSupported = "+rpcVersionSupported);
-		} catch (Exception e) {
-			log("### "+e);
-		}
-		if (client == null) {
-			log("### XML-RPC Client was not created. Exiting Sync.");
-			return;
-		}
-		log("--- sync ---");
-		try {
-			Object[] pages = (Object[]) client.call("wiki.getAllPages");
-			for (Object o : pages) {
-				@SuppressWarnings("unchecked")
-				HashMap<String, Object> pageMap = (HashMap<String, Object>) o;
-				String pageName = (String) pageMap.get("id");
-				WikiPage page = mDatabaseController.findPageByName(pageName);
-				if (page == null) {
-					page = new WikiPage();
-					page.name = pageName;
-				}
-				page.remoteChangedAt = (java.util.Date) pageMap.get("lastModified");
-				int action = getAction(page);
-				if (action != ACTION_NONE) {
-					log(page.name+": "+ACTION_NAMES[action]);
-				}
-				switch (action) {
-				case ACTION_NONE:
-					break;
-				case ACTION_MERGE: // FIXME: implement merge action
-					log("WARNING: merge not implemented. Killing local changes!");
-				case ACTION_DOWNLOAD:
-					downloadPageBody(page);
-					page.localChangedAt = page.remoteChangedAt;
-					page.syncedAt = page.remoteChangedAt;
-					storePage(page);
-					break;
-				case ACTION_UPLOAD:
-					if (uploadPage(page)) {
-						page.syncedAt = page.localChangedAt;
-						storePage(page);
-					}
-					break;
-				default:
-					log("ERROR: unknown action #"+action);
-				}
-//				storePage(page);
-			}
-		} catch (Exception e) {
-			log("### "+e);
-		}
-		log("*** Sync Finished ***");
-	}
-	
-	private int getAction(WikiPage page) {
-		int result = ACTION_NONE;
-		final long localChangedTime = getTime(page.localChangedAt);
-		final long remoteChangedTime = getTime(page.remoteChangedAt);
-		final long syncTime = getTime(page.syncedAt);
-		if (localChangedTime == 0L) {
-			result = ACTION_DOWNLOAD;
-		} else {
-			if (remoteChangedTime > syncTime) {
-				if (localChangedTime > syncTime) {
-					result = ACTION_MERGE;
-				} else {
-					result = ACTION_DOWNLOAD;
-				}
-			} else {
-				if (localChangedTime > syncTime) {
-					result = ACTION_UPLOAD;
-				} else {
-					result = ACTION_NONE;
-				}
-			}
-		}
-		return result;
-	}
-	
-	private void downloadPageBody(WikiPage page) {
-		log("--- downloadPageBody("+page.name+") ---");
-		try {
-			page.body = (String) client.call("wiki.getPage", page.name);
-			log("page content:\n"+page.body);
-		} catch (Exception e) {
-			log("### "+e);
-		}
-	}
-	
-	private boolean uploadPage(WikiPage page) {
-		boolean result = true;
-		log("--- uploadPage("+page.name+") ---");
-		try {
-			HashMap<String, String> attrs = new HashMap<String, String>();
-//			attrs.put("sum", "sync upload");
-			Integer callResult = (Integer) client.call("wiki.putPage", page.name, page.body, attrs);
-			result = callResult == 0;
-			log("result: "+result);
-			return result;
-		} catch (Exception e) {
-			log("### "+e);
-			return false;
-		}
-	}
-	
-	private void storePage(WikiPage page) {
-		if (page.id == 0) {
-			mDatabaseController.createPage(page);
-		} else {
-			mDatabaseController.updatePage(page);
-		}
-	}
-	
-	private String dateFormat(DateFormat dateFormat, Date date, String nullSubstitute) {
+	private static String dateFormat(DateFormat dateFormat, Date date, String nullSubstitute) {
 		return (date == null) ? nullSubstitute : dateFormat.format(date);
 	}
 
-	private long getTime(Date date) {
-		return date == null ? 0L : date.getTime();
-	}
-	
-	private void log(String log) {
-		if (mLogPrinter != null) {
-			try {
-				mLogPrinter.println(log);
-			} catch (Exception ex) {} // ignored
-		}
-		while (mSyncLogLines > MAX_LOG_LINES) {
-			int cutIndex = mSyncLog.indexOf("\n");
-			if ((cutIndex < 0) || (cutIndex >= mSyncLog.length()-1)) {
-				break;
+	private void scheduleRedraw() {
+		synchronized (mRun.log) {
+			if (!mRedrawPending) {
+				mRedrawPending = true;
+				mHandler.postDelayed(mRedraw, FRAME_MILLIS);
 			}
-			mSyncLog.delete(0, cutIndex+1);
-			mSyncLogLines--;
 		}
-		mSyncLog.append("[");
-		mSyncLog.append(++mSyncLogLine);
-		mSyncLog.append("] ");
-		mSyncLog.append(log);
-		mSyncLog.append("\n");
-		mSyncLogLines++;
-		mSyncLogView.setText(mSyncLog);
 	}
 	
 }
@@ -0,0 +1,862 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.xmlrpc.android.XMLRPCClient;
+import org.xmlrpc.android.XMLRPCException;
+import org.xmlrpc.android.XMLRPCFault;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Syncs the local pages with the wiki.
+ * <p>
+ * {@link #run()} blocks until the sync is done, so it has to be called on a
+ * background thread. {@link #cancel()} may be called from any thread: it
+ * shuts down the transport, so the RPC in flight fails right away and the
+ * run ends with it. Only one engine runs at a time.
+ */
+public class SyncEngine implements PageDownloader.ClientFactory {
+
+	private static final String TAG = "SyncEngine";
+
+	/** broadcast after every run, the pages may have changed */
+	public static final String ACTION_SYNC_FINISHED = "net.andunix.android.wikidroid.SYNC_FINISHED";
+
+	public interface Listener {
+		/** called on the sync thread for every line of the sync log */
+		public void onLog(String line);
+		/** called on the sync thread whenever a planned page is done */
+		public void onProgress(int done, int planned);
+	}
+
+    private static final String[] ACTION_NAMES = {
+    	"NONE",
+    	"DOWNLOAD",
+    	"UPLOAD",
+    	"MERGE"
+    };
+    public static final int ACTION_NONE = 0;
+    public static final int ACTION_DOWNLOAD = 1;
+    public static final int ACTION_UPLOAD = 2;
+    public static final int ACTION_MERGE = 3;
+
+    /** private preferences holding the per-wiki sync state */
+    private static final String SYNC_STATE_PREFS = "sync_state";
+    private static final String STATE_HIGH_WATER_MARK = "high_water_mark:";
+    /** high water mark of a completely planned run whose queue is not done */
+    private static final String STATE_PLANNED_HIGH_WATER_MARK = "planned_high_water_mark:";
+    /** the wiki the sync queue belongs to */
+    private static final String STATE_QUEUE_WIKI = "queue_wiki";
+    /** a queued page failing this often is dropped until it is listed again */
+    private static final int MAX_ATTEMPTS = 5;
+    /** the number of runs in a row which failed */
+    private static final String STATE_RUN_FAILURES = "run_failures:";
+    /** retries of a failed page */
+    private static final Backoff PAGE_BACKOFF = new Backoff(30L * 1000L, 60L * 60L * 1000L);
+    /** retries of a failed run */
+    private static final Backoff RUN_BACKOFF = new Backoff(60L * 1000L, 6L * 60L * 60L * 1000L);
+    private static final int BREAKER_WINDOW = 20;
+    private static final int BREAKER_MIN_CALLS = 10;
+    private static final double BREAKER_THRESHOLD = 0.5;
+    /** DokuWiki fault "There are no changes in the specified timeframe" */
+    private static final int FAULT_NO_CHANGES = 321;
+    /** DokuWiki only keeps recent changes for $conf['recent_days'] (default 7) */
+    private static final long MAX_INCREMENTAL_AGE = 7L * 24L * 60L * 60L * 1000L;
+
+	/** guarded by SyncEngine.class */
+	private static boolean running = false;
+
+	private final Context context;
+	private final DatabaseController database;
+	private final RenderCache renderCache;
+	private final SharedPreferences syncState;
+	private final String wikiUrl;
+	private final String wikiUser;
+	private final String wikiPasswd;
+	private final int downloadThreads;
+	private volatile Listener listener;
+	private volatile HttpTransport transport;
+	private volatile Thread runThread;
+	private volatile boolean cancelled = false;
+	private XMLRPCClient client;
+	private URI xmlrpcUri;
+	private PageDownloader downloader;
+	private MulticallClient uploader;
+	private List<WikiPage> pendingUploads = new ArrayList<WikiPage>();
+	private long pendingUploadBytes;
+	private StreamingXmlRpcClient listClient;
+	private PageSnapshot snapshot;
+	private Set<String> listed;
+	private Set<String> resumed = new HashSet<String>();
+	private long highWaterMark;
+	/** the marks stay below the remote changes of pages given up on */
+	private long givenUpMark;
+	private boolean runComplete;
+	private CircuitBreaker breaker;
+	private SyncMetrics metrics;
+	private EventLog events;
+	private int planned;
+	private int done;
+
+	/**
+	 * @param database
+	 *            an open database, it is not closed by the engine
+	 */
+	public SyncEngine(Context context, DatabaseController database) {
+		this.context = context;
+		this.database = database;
+		this.renderCache = RenderCache.getInstance(context);
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		wikiUrl = prefs.getString(PrefsActivity.PREF_WIKI_URL, "<unset>");
+		wikiUser = prefs.getString(PrefsActivity.PREF_WIKI_USER, "");
+		wikiPasswd = prefs.getString(PrefsActivity.PREF_WIKI_PASSWD, "");
+		downloadThreads = Integer.parseInt(prefs.getString(PrefsActivity.PREF_SYNC_THREADS, "4"));
+		syncState = context.getSharedPreferences(SYNC_STATE_PREFS, Context.MODE_PRIVATE);
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public XMLRPCClient createClient() throws XMLRPCException {
+		return new XMLRPCClient(xmlrpcUri, transport.getHttpClient());
+	}
+
+	/**
+	 * Runs a sync on the calling thread.
+	 *
+	 * @return <code>true</code> if the sync finished, <code>false</code> if it
+	 *         failed, was cancelled or another sync is running
+	 */
+	public boolean run() {
+		synchronized (SyncEngine.class) {
+			if (running) {
+				log(EventLog.LEVEL_WARNING, null, "sync already running");
+				return false;
+			}
+			running = true;
+		}
+		runThread = Thread.currentThread();
+		try {
+			if (!connect()) {
+				// retried like a run that failed later on
+				finishRun(true);
+				return false;
+			}
+			return sync();
+		} finally {
+			runThread = null;
+			// don't leave a cancellation behind on a pooled thread
+			Thread.interrupted();
+			synchronized (SyncEngine.class) {
+				running = false;
+			}
+		}
+	}
+
+	/**
+	 * Stops a running sync. The pages synced so far are kept, the rest stays
+	 * queued for the next run.
+	 */
+	public void cancel() {
+		cancelled = true;
+		Thread thread = runThread;
+		if (thread != null) {
+			thread.interrupt();
+		}
+		HttpTransport t = transport;
+		if (t != null) {
+			// aborts the request in flight
+			t.shutdown();
+		}
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Releases the connections, the engine can't be run again.
+	 */
+	public void close() {
+		HttpTransport t = transport;
+		transport = null;
+		if (t != null) {
+			t.shutdown();
+		}
+	}
+
+	/**
+	 * Opens the XML-RPC connection and logs in.
+	 */
+	private boolean connect() {
+		try {
+			Log.i(TAG, "opening connection: "+wikiUrl);
+			String xmlrpc_url = wikiUrl;
+			if (!xmlrpc_url.endsWith("/")) {
+				xmlrpc_url += "/";
+			}
+			xmlrpc_url += "lib/exe/xmlrpc.php";
+			Log.d(TAG, "xmlrpc_url="+xmlrpc_url);
+			xmlrpcUri = URI.create(xmlrpc_url);
+			// one more connection for the listing and the uploads
+			transport = new HttpTransport(downloadThreads + 1);
+			if (cancelled) {
+				return false;
+			}
+			client = createClient();
+			listClient = new StreamingXmlRpcClient(xmlrpcUri, transport.getHttpClient());
+			if ((wikiUser != null) && (wikiUser.length() > 0)) {
+				// the session cookie is shared by all clients of the transport
+				Log.d(TAG, "logging in as "+wikiUser);
+				Boolean loginResult = (Boolean) client.call("dokuwiki.login", wikiUser, wikiPasswd);
+				log(EventLog.LEVEL_INFO, null, "login: "+loginResult);
+			}
+			return true;
+		} catch (Exception e) {
+			Log.e(TAG, e.getMessage(), e);
+			log(EventLog.LEVEL_ERROR, null, cancelled ? "sync cancelled"
+					: "connection failed: "+e.getMessage());
+			return false;
+		}
+	}
+
+	private boolean sync() {
+		metrics = new SyncMetrics(transport);
+		events = new EventLog(database, database.startSyncRun(metrics.getStartedAt()));
+		log(EventLog.LEVEL_INFO, null, "sync started: "+wikiUrl);
+		boolean runFailed = true;
+		planned = 0;
+		done = 0;
+		database.setMetrics(metrics);
+		try {
+			String queueWiki = syncState.getString(STATE_QUEUE_WIKI, wikiUrl);
+			if (!wikiUrl.equals(queueWiki)) {
+				// the queue of another wiki, it's planned again once we're back
+				database.clearSyncQueue();
+				syncState.edit().remove(STATE_PLANNED_HIGH_WATER_MARK+queueWiki).commit();
+			}
+			syncState.edit().putString(STATE_QUEUE_WIKI, wikiUrl).commit();
+			final long plannedMark = syncState.getLong(STATE_PLANNED_HIGH_WATER_MARK+wikiUrl, -1L);
+			snapshot = database.loadPageSnapshot();
+			runComplete = true;
+			breaker = new CircuitBreaker(BREAKER_WINDOW, BREAKER_MIN_CALLS, BREAKER_THRESHOLD);
+			downloader = new PageDownloader(this, downloadThreads, metrics);
+			uploader = new MulticallClient(client, metrics);
+			givenUpMark = Long.MAX_VALUE;
+			database.beginSyncBatch();
+			resumeQueue();
+			long start = System.nanoTime();
+			// the changes since the last plan are planned along with its queue
+			planRun(Math.min(Math.max(getHighWaterMark(), plannedMark), givenUpMark));
+			highWaterMark = Math.min(highWaterMark, givenUpMark);
+			metrics.addPhaseTime(SyncMetrics.PHASE_LIST, System.nanoTime() - start);
+			// the plan survives from here on, even if the sync is killed
+			events.flush();
+			database.checkpointSyncBatch();
+			syncState.edit().putLong(STATE_PLANNED_HIGH_WATER_MARK+wikiUrl, highWaterMark).commit();
+			flushUploads();
+			start = System.nanoTime();
+			while (downloader.getPending() > 0) {
+				checkCancelled();
+				breaker.check();
+				storeDownloadedPage(takeDownload());
+			}
+			metrics.addPhaseTime(SyncMetrics.PHASE_DOWNLOAD, System.nanoTime() - start);
+			checkCancelled();
+			database.checkpointSyncBatch();
+			if (database.getSyncQueueSize() == 0L) {
+				// failed pages are queued again by the next listing
+				syncState.edit().remove(STATE_PLANNED_HIGH_WATER_MARK+wikiUrl).commit();
+				if (runComplete) {
+					setHighWaterMark(highWaterMark);
+				}
+			}
+			log(EventLog.LEVEL_INFO, null, "sync finished");
+			runFailed = false;
+		} catch (Exception e) {
+			if (cancelled) {
+				log(EventLog.LEVEL_WARNING, null, "sync cancelled");
+			} else {
+				Log.e(TAG, e.getMessage(), e);
+				log(EventLog.LEVEL_ERROR, null, "sync failed: "+e.getMessage());
+			}
+		} finally {
+			snapshot = null;
+			listed = null;
+			resumed.clear();
+			if (downloader != null) {
+				downloader.shutdown();
+				downloader = null;
+			}
+			if (database.isSyncBatchActive()) {
+				// keep whatever made it so far
+				database.commitSyncBatch();
+			}
+			pendingUploads.clear();
+			pendingUploadBytes = 0L;
+			breaker = null;
+			database.setMetrics(null);
+			metrics.finish();
+			database.finishSyncRun(events.getRunId(), metrics);
+			log(EventLog.LEVEL_INFO, null, metrics.getSummary());
+			metrics = null;
+		}
+		finishRun(runFailed);
+		return !runFailed;
+	}
+
+	/**
+	 * Schedules the next run and tells the lists to reload, after a run or
+	 * a failed attempt to connect.
+	 */
+	private void finishRun(boolean runFailed) {
+		if (!cancelled) {
+			// a cancelled run is started again by the user
+			scheduleRetry(runFailed);
+		}
+		if (events != null) {
+			events.close();
+			events = null;
+		}
+		context.sendBroadcast(new Intent(ACTION_SYNC_FINISHED));
+	}
+
+	/**
+	 * @throws InterruptedException
+	 *             if the run has been cancelled
+	 */
+	private void checkCancelled() throws InterruptedException {
+		if (cancelled) {
+			throw new InterruptedException("sync cancelled");
+		}
+	}
+
+	/**
+	 * Logs a line to the event log of the run and the listener.
+	 *
+	 * @param page
+	 *            the page the line is about, <code>null</code> for the run
+	 */
+	private void log(int level, String page, String text) {
+		String line = (page == null) ? text : page+": "+text;
+		switch (level) {
+		case EventLog.LEVEL_ERROR:
+			Log.e(TAG, line);
+			break;
+		case EventLog.LEVEL_WARNING:
+			Log.w(TAG, line);
+			break;
+		default:
+			Log.i(TAG, line);
+		}
+		if (events != null) {
+			events.log(level, page, text);
+		}
+		Listener l = listener;
+		if (l != null) {
+			l.onLog(line);
+		}
+	}
+
+	private void updateProgress() {
+		Listener l = listener;
+		if (l != null) {
+			l.onProgress(done, planned);
+		}
+	}
+
+	/**
+	 * Syncs the pages left in the queue by an interrupted or failed run.
+	 */
+	private void resumeQueue() throws InterruptedException {
+		List<SyncJob> jobs = database.loadSyncQueue();
+		if (jobs.isEmpty()) {
+			return;
+		}
+		log(EventLog.LEVEL_INFO, null, "resuming "+jobs.size()+" queued pages");
+		final long now = System.currentTimeMillis();
+		for (SyncJob job : jobs) {
+			checkCancelled();
+			resumed.add(job.name);
+			if (job.nextAttemptAt > now) {
+				// backing off, the job stays queued
+				runComplete = false;
+			} else if (job.attempts >= MAX_ATTEMPTS) {
+				log(EventLog.LEVEL_ERROR, job.name, "giving up after "+job.attempts+" attempts");
+				giveUp(job);
+				runComplete = false;
+			} else if (syncPage(snapshot.getPage(job.name), job.name,
+					job.remoteChangedAt) == ACTION_NONE) {
+				// done before the sync was killed
+				database.finishSyncJob(job.name);
+			}
+		}
+	}
+
+	/**
+	 * Drops a job which failed too often. A remote change must be listed
+	 * again by a later run, so the planned high water mark is moved below
+	 * it before the job is gone; this run keeps both marks below it, too.
+	 * Local changes are found again by the local-change scan anyway.
+	 */
+	private void giveUp(SyncJob job) {
+		final long changedAt = getTime(job.remoteChangedAt);
+		if ((job.action != ACTION_UPLOAD) && (changedAt > 0L)) {
+			givenUpMark = Math.min(givenUpMark, changedAt - 1L);
+			final String key = STATE_PLANNED_HIGH_WATER_MARK+wikiUrl;
+			if (syncState.getLong(key, -1L) > givenUpMark) {
+				syncState.edit().putLong(key, givenUpMark).commit();
+			}
+		}
+		database.finishSyncJob(job.name);
+	}
+
+	/**
+	 * Lists the pages changed since the given time, or all pages if that's
+	 * not possible, and queues the ones which need to be synced. Local
+	 * changes are always planned. Pages resumed from the queue are skipped.
+	 *
+	 * @param since
+	 *            the high water mark of the last complete run, or of the
+	 *            last plan if its queue is not done yet
+	 */
+	private void planRun(long since) throws Exception {
+		Object[] pages = null;
+		if (since > 0L) {
+			pages = fetchRecentChanges(since);
+		}
+		highWaterMark = since;
+		StreamingXmlRpcClient.ValueHandler planner = new StreamingXmlRpcClient.ValueHandler() {
+			@Override
+			public void onValue(Object value) throws Exception {
+				@SuppressWarnings("unchecked")
+				HashMap<String, Object> pageMap = (HashMap<String, Object>) value;
+				planPage(pageMap);
+			}
+		};
+		if (pages != null) {
+			listed = new HashSet<String>();
+			for (Object o : pages) {
+				planner.onValue(o);
+			}
+			// an incremental listing only contains remote changes
+			for (WikiPage page : database.findLocallyChangedPages()) {
+				if (!listed.contains(page.name) && !resumed.contains(page.name)) {
+					syncPage(page, page.name, page.remoteChangedAt);
+				}
+			}
+		} else {
+			log(EventLog.LEVEL_INFO, null, "full sync");
+			// plan the pages while the listing is still being received
+			long start = System.nanoTime();
+			boolean ok = false;
+			try {
+				listClient.callStreaming("wiki.getAllPages", new Object[0], planner);
+				ok = true;
+			} finally {
+				// includes the planning done while the listing is received
+				metrics.recordRpc("wiki.getAllPages", System.nanoTime() - start, ok);
+			}
+		}
+	}
+
+	/**
+	 * Asks the wiki for the pages changed since the given time.
+	 *
+	 * @return the changed pages or <code>null</code> if a full sync is needed
+	 */
+	private Object[] fetchRecentChanges(long since) {
+		if (System.currentTimeMillis() - since > MAX_INCREMENTAL_AGE) {
+			Log.i(TAG, "last sync too old for incremental sync");
+			return null;
+		}
+		try {
+			log(EventLog.LEVEL_INFO, null, "incremental sync since "+new Date(since));
+			return (Object[]) call("wiki.getRecentChanges", (int) (since / 1000L));
+		} catch (XMLRPCFault f) {
+			if (f.getFaultCode() == FAULT_NO_CHANGES) {
+				return new Object[0];
+			}
+			Log.w(TAG, "wiki.getRecentChanges failed: "+f.getFaultString());
+		} catch (XMLRPCException e) {
+			Log.w(TAG, "wiki.getRecentChanges failed: "+e.getMessage());
+		}
+		return null;
+	}
+
+	private void planPage(HashMap<String, Object> pageMap) throws InterruptedException {
+		String pageName = getPageName(pageMap);
+		Date lastModified = (Date) pageMap.get("lastModified");
+		if (listed != null) {
+			listed.add(pageName);
+		}
+		highWaterMark = Math.max(highWaterMark, getTime(lastModified));
+		if (resumed.contains(pageName)) {
+			// already synced from the queue
+			return;
+		}
+		syncPage(snapshot.getPage(pageName), pageName, lastModified);
+	}
+
+	/**
+	 * Syncs a single page. The page is queued until it is done. Downloads
+	 * are handed to the {@link PageDownloader} and stored once they come
+	 * back.
+	 *
+	 * @return the action taken
+	 */
+	private int syncPage(WikiPage page, String pageName, Date lastModified)
+			throws InterruptedException {
+		if (page == null) {
+			page = new WikiPage();
+			page.name = pageName;
+		}
+		checkCancelled();
+		breaker.check();
+		page.remoteChangedAt = lastModified;
+		int action = getAction(page);
+		metrics.recordAction(action);
+		if (action != ACTION_NONE) {
+			log(EventLog.LEVEL_INFO, page.name, ACTION_NAMES[action]);
+			database.queueSyncJob(page.name, action, lastModified);
+			planned++;
+			updateProgress();
+		}
+		switch (action) {
+		case ACTION_NONE:
+			break;
+		case ACTION_MERGE:
+			loadStoredBody(page);
+			mergePage(page);
+			break;
+		case ACTION_DOWNLOAD:
+			while (!downloader.offer(page)) {
+				storeDownloadedPage(takeDownload());
+			}
+			break;
+		case ACTION_UPLOAD:
+			loadStoredBody(page);
+			if (page.isUnchanged()) {
+				// touched, but the body is still the synced one
+				page.syncedAt = page.localChangedAt;
+				storePage(page);
+				finishPage(page.name);
+				break;
+			}
+			if (ThreeWayMerge.hasConflictMarkers(page.body)) {
+				log(EventLog.LEVEL_WARNING, page.name, "unresolved merge conflict, not uploaded");
+				finishPage(page.name);
+				break;
+			}
+			queueUpload(page);
+			break;
+		default:
+			Log.d(TAG, "ERROR: unknown action #"+action);
+		}
+		return action;
+	}
+
+	/**
+	 * Loads body and hashes of a page planned from the snapshot.
+	 */
+	private void loadStoredBody(WikiPage page) {
+		if (page.getBody() == null) {
+			WikiPage stored = database.getPage(page.id);
+			page.setBody(stored.getBody());
+			page.bodyHash = stored.bodyHash;
+			page.syncedHash = stored.syncedHash;
+		}
+	}
+
+	private void queueUpload(WikiPage page) {
+		pendingUploads.add(page);
+		pendingUploadBytes += page.body.length();
+		if ((pendingUploads.size() >= MulticallClient.MAX_BATCH_SIZE)
+				|| (pendingUploadBytes >= MulticallClient.TARGET_BATCH_BYTES)) {
+			flushUploads();
+		}
+	}
+
+	/**
+	 * Merges the local and remote changes of a page against the last synced
+	 * body. A clean merge is uploaded, a conflicting one is stored with
+	 * conflict markers and the remote body as new base, so it can be
+	 * resolved in the editor and uploaded by the next sync.
+	 */
+	private void mergePage(WikiPage page) {
+		final long start = System.nanoTime();
+		try {
+			merge(page);
+		} finally {
+			metrics.addPhaseTime(SyncMetrics.PHASE_MERGE, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * A merged page only counts as synced once the merge is uploaded or the
+	 * remote body is stored as its base. Anything else fails the page, so
+	 * the high water mark doesn't pass the remote change and a later run
+	 * can't upload over it.
+	 */
+	private void merge(WikiPage page) {
+		String remoteBody;
+		try {
+			remoteBody = (String) call("wiki.getPage", page.name);
+		} catch (XMLRPCException e) {
+			Log.e(TAG, page.name+": "+e.getMessage(), e);
+			failPage(page.name);
+			return;
+		}
+		if (remoteBody == null) {
+			log(EventLog.LEVEL_WARNING, page.name, "remote body missing, not merged");
+			failPage(page.name);
+			return;
+		}
+		breaker.recordSuccess();
+		ThreeWayMerge.Result merge = ThreeWayMerge.merge(
+				database.getBaseBody(page.id), page.getBody(), remoteBody);
+		page.setBody(merge.text);
+		page.localChangedAt = new Date();
+		if (merge.conflicts == 0) {
+			Log.d(TAG, page.name+": merged");
+			queueUpload(page);
+		} else {
+			log(EventLog.LEVEL_WARNING, page.name, merge.conflicts+" merge conflicts");
+			page.syncedAt = page.remoteChangedAt;
+			page.syncedHash = ContentHash.of(remoteBody);
+			page.baseBody = remoteBody;
+			storePage(page);
+			finishPage(page.name);
+		}
+	}
+
+	/**
+	 * Calls a method with the shared client and records its latency.
+	 */
+	private Object call(String method, Object... params) throws XMLRPCException {
+		// nothing waits for the batch while we wait for the wiki
+		database.checkpointSyncBatch();
+		final long start = System.nanoTime();
+		boolean ok = false;
+		try {
+			Object result = client.callEx(method, params);
+			ok = true;
+			return result;
+		} finally {
+			metrics.recordRpc(method, System.nanoTime() - start, ok);
+		}
+	}
+
+	/**
+	 * Takes the next download, the batch is committed first if that has to
+	 * wait.
+	 */
+	private WikiPage takeDownload() throws InterruptedException {
+		if (!downloader.hasDone()) {
+			database.checkpointSyncBatch();
+		}
+		return downloader.take();
+	}
+
+	/**
+	 * Dequeues a page which is done.
+	 */
+	private void finishPage(String name) {
+		database.finishSyncJob(name);
+		done++;
+		updateProgress();
+	}
+
+	/**
+	 * Defers a failed page. The next {@link CircuitBreaker#check()} ends the
+	 * run if too much failed.
+	 */
+	private void failPage(String name) {
+		runComplete = false;
+		if (cancelled) {
+			// aborted by the cancel, not the page's fault
+			return;
+		}
+		int attempts = database.failSyncJob(name, PAGE_BACKOFF);
+		log(EventLog.LEVEL_WARNING, name, "attempt #"+attempts+" failed");
+		breaker.recordFailure();
+		metrics.recordFailure();
+		done++;
+		updateProgress();
+	}
+
+	/**
+	 * Schedules the next run if this one failed or left deferred pages in
+	 * the queue.
+	 */
+	private void scheduleRetry(boolean runFailed) {
+		AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		PendingIntent retry = PendingIntent.getService(context, 0,
+				new Intent(context, SyncService.class), PendingIntent.FLAG_UPDATE_CURRENT);
+		final long now = System.currentTimeMillis();
+		int runFailures = 0;
+		long retryAt = 0L;
+		if (runFailed) {
+			runFailures = syncState.getInt(STATE_RUN_FAILURES+wikiUrl, 0) + 1;
+			retryAt = now + RUN_BACKOFF.getDelay(runFailures);
+		} else if (database.getSyncQueueSize() > 0L) {
+			retryAt = Math.max(database.getNextSyncAttempt(), now + PAGE_BACKOFF.getDelay(1));
+		}
+		syncState.edit().putInt(STATE_RUN_FAILURES+wikiUrl, runFailures).commit();
+		if (retryAt > 0L) {
+			log(EventLog.LEVEL_INFO, null, "next sync at "+new Date(retryAt));
+			alarms.set(AlarmManager.RTC, retryAt, retry);
+		} else {
+			alarms.cancel(retry);
+		}
+	}
+
+	private void storeDownloadedPage(WikiPage page) {
+		if (page.body == null) {
+			failPage(page.name);
+			return;
+		}
+		breaker.recordSuccess();
+		page.localChangedAt = page.remoteChangedAt;
+		page.syncedAt = page.remoteChangedAt;
+		page.syncedHash = ContentHash.of(page.body);
+		storePage(page);
+		// a page read before is rendered again in the background
+		renderCache.update(page);
+		finishPage(page.name);
+	}
+
+	private String getPageName(HashMap<String, Object> pageMap) {
+		// wiki.getAllPages uses "id", wiki.getRecentChanges uses "name"
+		Object name = pageMap.get("id");
+		if (name == null) {
+			name = pageMap.get("name");
+		}
+		return (String) name;
+	}
+
+	private long getHighWaterMark() {
+		return syncState.getLong(STATE_HIGH_WATER_MARK+wikiUrl, 0L);
+	}
+
+	private void setHighWaterMark(long time) {
+		syncState.edit().putLong(STATE_HIGH_WATER_MARK+wikiUrl, time).commit();
+	}
+
+	private int getAction(WikiPage page) {
+		int result = ACTION_NONE;
+		// a page whose body equals the synced one has no local changes
+		final long localChangedTime = page.isUnchanged() ? getTime(page.syncedAt)
+				: getTime(page.localChangedAt);
+		final long remoteChangedTime = getTime(page.remoteChangedAt);
+		final long syncTime = getTime(page.syncedAt);
+		if (localChangedTime == 0L) {
+			result = ACTION_DOWNLOAD;
+		} else {
+			if (remoteChangedTime > syncTime) {
+				if (localChangedTime > syncTime) {
+					result = ACTION_MERGE;
+				} else {
+					result = ACTION_DOWNLOAD;
+				}
+			} else {
+				if (localChangedTime > syncTime) {
+					result = ACTION_UPLOAD;
+				} else {
+					result = ACTION_NONE;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Uploads the queued pages in one <code>system.multicall</code> request.
+	 */
+	private void flushUploads() {
+		if (pendingUploads.isEmpty()) {
+			return;
+		}
+		Log.d(TAG, "--- uploadPages("+pendingUploads.size()+" pages) ---");
+		final long start = System.nanoTime();
+		List<Object[]> params = new ArrayList<Object[]>(pendingUploads.size());
+		for (WikiPage page : pendingUploads) {
+			HashMap<String, String> attrs = new HashMap<String, String>();
+//			attrs.put("sum", "sync upload");
+			params.add(new Object[] { page.name, page.body, attrs });
+		}
+		try {
+			database.checkpointSyncBatch();
+			Object[] results = uploader.callAll("wiki.putPage", params);
+			List<WikiPage> uploaded = new ArrayList<WikiPage>(results.length);
+			for (int i = 0; i < results.length; i++) {
+				WikiPage page = pendingUploads.get(i);
+				// older DokuWiki versions return 0, newer ones true
+				boolean result = Boolean.TRUE.equals(results[i])
+						|| Integer.valueOf(0).equals(results[i]);
+				Log.d(TAG, page.name+": "+(result ? "uploaded" : results[i]));
+				if (result) {
+					page.syncedAt = page.localChangedAt;
+					page.syncedHash = ContentHash.of(page.getBody());
+					uploaded.add(page);
+				} else {
+					failPage(page.name);
+				}
+			}
+			for (WikiPage page : uploaded) {
+				breaker.recordSuccess();
+				storePage(page);
+				finishPage(page.name);
+			}
+		} catch (Exception e) {
+			Log.e(TAG, e.getMessage(), e);
+			for (WikiPage page : pendingUploads) {
+				failPage(page.name);
+			}
+		}
+		pendingUploads.clear();
+		pendingUploadBytes = 0L;
+		metrics.addPhaseTime(SyncMetrics.PHASE_UPLOAD, System.nanoTime() - start);
+	}
+
+	private void storePage(WikiPage page) {
+		database.writePage(page);
+	}
+
+	private long getTime(Date date) {
+		return date == null ? 0L : date.getTime();
+	}
+
+}
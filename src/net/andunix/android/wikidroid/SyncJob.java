@@ -0,0 +1,34 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import java.util.Date;
+
+/**
+ * A page waiting in the persistent sync queue.
+ */
+public class SyncJob {
+	public String name = null;
+	/** the action planned when the job was queued */
+	public int action = 0;
+	public Date remoteChangedAt = null;
+	/** the number of failed attempts so far */
+	public int attempts = 0;
+	/** when the job may be tried again, in milliseconds */
+	public long nextAttemptAt = 0L;
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.andunix.android.wikidroid;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counters and timers of one sync run.
+ * <p>
+ * RPC latencies are kept per method in histograms with power of two
+ * millisecond buckets, so recording is cheap and needs no allocation.
+ * All methods are thread safe, the download workers record into the same
+ * instance as the writer.
+ */
+public class SyncMetrics {
+
+	public static final String PHASE_LIST = "list";
+	public static final String PHASE_DOWNLOAD = "download";
+	public static final String PHASE_UPLOAD = "upload";
+	public static final String PHASE_MERGE = "merge";
+
+	public static final int ACTION_COUNT = 4;
+
+	/** bucket i holds latencies below 2^i ms, the last one everything above */
+	private static final int BUCKETS = 16;
+
+	private static class Histogram {
+		final long[] buckets = new long[BUCKETS];
+		long count = 0L;
+		long errors = 0L;
+		long totalNanos = 0L;
+		long maxNanos = 0L;
+
+		void record(long nanos, boolean ok) {
+			long millis = nanos / 1000000L;
+			int bucket = 0;
+			while ((bucket < BUCKETS - 1) && (millis >= (1L << bucket))) {
+				bucket++;
+			}
+			buckets[bucket]++;
+			count++;
+			if (!ok) {
+				errors++;
+			}
+			totalNanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+		}
+
+		/**
+		 * @return the upper bound of the bucket holding the given
+		 *         percentile, in ms
+		 */
+		long getPercentile(int percent) {
+			long rank = (count * percent + 99L) / 100L;
+			long seen = 0L;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets[i];
+				if (seen >= rank) {
+					return (i < BUCKETS - 1) ? (1L << i) : maxNanos / 1000000L;
+				}
+			}
+			return maxNanos / 1000000L;
+		}
+	}
+
+	private final long mStartedAt;
+	private long mFinishedAt = 0L;
+	private final Map<String, Histogram> mRpcs = new LinkedHashMap<String, Histogram>();
+	private final Map<String, Long> mPhaseNanos = new LinkedHashMap<String, Long>();
+	private final int[] mActions = new int[ACTION_COUNT];
+	private int mFailed = 0;
+	private int mDbWrites = 0;
+	private long mDbWriteNanos = 0L;
+	private int mDbCommits = 0;
+	private long mDbCommitNanos = 0L;
+	private long mRequests = 0L;
+	private long mBytesSent = 0L;
+	private long mBytesReceived = 0L;
+
+	private final HttpTransport mTransport;
+
+	/**
+	 * @param transport
+	 *            the transport of the run, its traffic so far is not counted
+	 */
+	public SyncMetrics(HttpTransport transport) {
+		mStartedAt = System.currentTimeMillis();
+		mTransport = transport;
+		mRequests = -transport.getRequests();
+		mBytesSent = -transport.getBytesSent();
+		mBytesReceived = -transport.getBytesReceived();
+	}
+
+	public synchronized void recordRpc(String method, long nanos, boolean ok) {
+		Histogram histogram = mRpcs.get(method);
+		if (histogram == null) {
+			histogram = new Histogram();
+			mRpcs.put(method, histogram);
+		}
+		histogram.record(nanos, ok);
+	}
+
+	public synchronized void addPhaseTime(String phase, long nanos) {
+		Long total = mPhaseNanos.get(phase);
+		mPhaseNanos.put(phase, (total == null) ? nanos : total + nanos);
+	}
+
+	public synchronized void recordAction(int action) {
+		mActions[action]++;
+	}
+
+	public synchronized void recordFailure() {
+		mFailed++;
+	}
+
+	public synchronized void recordDbWrite(long nanos) {
+		mDbWrites++;
+		mDbWriteNanos += nanos;
+	}
+
+	public synchronized void recordDbCommit(long nanos) {
+		mDbCommits++;
+		mDbCommitNanos += nanos;
+	}
+
+	/**
+	 * Stops the clock and takes the traffic of the run from the transport.
+	 */
+	public synchronized void finish() {
+		mFinishedAt = System.currentTimeMillis();
+		mRequests += mTransport.getRequests();
+		mBytesSent += mTransport.getBytesSent();
+		mBytesReceived += mTransport.getBytesReceived();
+	}
+
+	public long getStartedAt() {
+		return mStartedAt;
+	}
+
+	public synchronized long getDuration() {
+		return ((mFinishedAt == 0L) ? System.currentTimeMillis() : mFinishedAt) - mStartedAt;
+	}
+
+	public synchronized int getActionCount(int action) {
+		return mActions[action];
+	}
+
+	public synchronized int getFailed() {
+		return mFailed;
+	}
+
+	public synchronized long getRequests() {
+		return mRequests;
+	}
+
+	public synchronized long getBytesSent() {
+		return mBytesSent;
+	}
+
+	public synchronized long getBytesReceived() {
+		return mBytesReceived;
+	}
+
+	/** @return the time spent writing and committing pages, in ms */
+	public synchronized long getDbMillis() {
+		return (mDbWriteNanos + mDbCommitNanos) / 1000000L;
+	}
+
+	/**
+	 * Formats the phases, RPCs and database times for display, one item per
+	 * line.
+	 */
+	public synchronized String getSummary() {
+		StringBuilder summary = new StringBuilder();
+		for (Map.Entry<String, Long> phase : mPhaseNanos.entrySet()) {
+			summary.append(phase.getKey()).append(": ")
+					.append(phase.getValue() / 1000000L).append(" ms\n");
+		}
+		for (Map.Entry<String, Histogram> rpc : mRpcs.entrySet()) {
+			Histogram histogram = rpc.getValue();
+			summary.append(rpc.getKey()).append(": ").append(histogram.count)
+					.append(" calls");
+			if (histogram.errors > 0L) {
+				summary.append(", ").append(histogram.errors).append(" failed");
+			}
+			summary.append(", avg ").append(histogram.totalNanos / histogram.count / 1000000L)
+					.append(" ms, p50 <").append(histogram.getPercentile(50))
+					.append(" ms, p90 <").append(histogram.getPercentile(90))
+					.append(" ms, max ").append(histogram.maxNanos / 1000000L)
+					.append(" ms\n");
+		}
+		summary.append("db: ").append(mDbWrites).append(" writes in ")
+				.append(mDbWriteNanos / 1000000L).append(" ms, ").append(mDbCommits)
+				.append(" commits in ").append(mDbCommitNanos / 1000000L).append(" ms\n");
+		return summary.toString();
+	}
+
+}
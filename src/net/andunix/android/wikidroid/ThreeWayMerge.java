@@ -0,0 +1,358 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Line based three-way merge of page bodies, like <code>diff3 -m</code>.
+ * <p>
+ * Both sides are diffed against the base with Myers' O((N+M)D) algorithm in
+ * its linear space variant. Lines are compared as interned ints and a common
+ * prefix and suffix is skipped first, so typical edits of large pages are
+ * merged in about linear time.
+ */
+public class ThreeWayMerge {
+
+	public static final String MARKER_LOCAL = "<<<<<<< local";
+	public static final String MARKER_SEPARATOR = "=======";
+	public static final String MARKER_REMOTE = ">>>>>>> remote";
+
+	public static class Result {
+		public final String text;
+		/** number of conflicting regions, marked up in the text */
+		public final int conflicts;
+
+		Result(String text, int conflicts) {
+			this.text = text;
+			this.conflicts = conflicts;
+		}
+	}
+
+	/** a changed region: base lines [baseStart, baseEnd) became [start, end) */
+	private static class Hunk {
+		final int baseStart;
+		final int baseEnd;
+		final int start;
+		final int end;
+
+		Hunk(int baseStart, int baseEnd, int start, int end) {
+			this.baseStart = baseStart;
+			this.baseEnd = baseEnd;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	private ThreeWayMerge() {}
+
+	/**
+	 * Merges the local and remote changes of a page.
+	 *
+	 * @param base
+	 *            the body both sides started from, <code>null</code> if
+	 *            unknown
+	 */
+	public static Result merge(String base, String local, String remote) {
+		if (local.equals(remote)) {
+			return new Result(local, 0);
+		}
+		if (base == null) {
+			base = "";
+		}
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		String[] baseLines = splitLines(base);
+		String[] localLines = splitLines(local);
+		String[] remoteLines = splitLines(remote);
+		int[] baseIds = intern(baseLines, ids);
+		List<Hunk> localHunks = diff(baseIds, intern(localLines, ids));
+		List<Hunk> remoteHunks = diff(baseIds, intern(remoteLines, ids));
+
+		StringBuilder result = new StringBuilder(Math.max(local.length(), remote.length()));
+		int conflicts = 0;
+		int baseIndex = 0;
+		int l = 0;
+		int r = 0;
+		while ((l < localHunks.size()) || (r < remoteHunks.size())) {
+			// collect all hunks of both sides which overlap the region
+			int regionStart;
+			if ((r >= remoteHunks.size()) || ((l < localHunks.size())
+					&& (localHunks.get(l).baseStart <= remoteHunks.get(r).baseStart))) {
+				regionStart = localHunks.get(l).baseStart;
+			} else {
+				regionStart = remoteHunks.get(r).baseStart;
+			}
+			int regionEnd = regionStart;
+			int lFirst = l;
+			int rFirst = r;
+			boolean extended = true;
+			while (extended) {
+				extended = false;
+				while ((l < localHunks.size()) && (localHunks.get(l).baseStart <= regionEnd)) {
+					regionEnd = Math.max(regionEnd, localHunks.get(l++).baseEnd);
+					extended = true;
+				}
+				while ((r < remoteHunks.size()) && (remoteHunks.get(r).baseStart <= regionEnd)) {
+					regionEnd = Math.max(regionEnd, remoteHunks.get(r++).baseEnd);
+					extended = true;
+				}
+			}
+			append(result, baseLines, baseIndex, regionStart);
+			if (r == rFirst) {
+				appendSide(result, localLines, localHunks, lFirst, l, regionStart, regionEnd);
+			} else if (l == lFirst) {
+				appendSide(result, remoteLines, remoteHunks, rFirst, r, regionStart, regionEnd);
+			} else {
+				StringBuilder localPart = new StringBuilder();
+				appendSide(localPart, localLines, localHunks, lFirst, l, regionStart, regionEnd);
+				StringBuilder remotePart = new StringBuilder();
+				appendSide(remotePart, remoteLines, remoteHunks, rFirst, r, regionStart, regionEnd);
+				if (localPart.toString().equals(remotePart.toString())) {
+					// both sides made the same change
+					result.append(localPart);
+				} else {
+					appendMarker(result, MARKER_LOCAL);
+					result.append(localPart);
+					appendMarker(result, MARKER_SEPARATOR);
+					result.append(remotePart);
+					appendMarker(result, MARKER_REMOTE);
+					conflicts++;
+				}
+			}
+			baseIndex = regionEnd;
+		}
+		append(result, baseLines, baseIndex, baseLines.length);
+		return new Result(result.toString(), conflicts);
+	}
+
+	/**
+	 * @return <code>true</code> if the body still contains conflict markers
+	 *         of an earlier merge
+	 */
+	public static boolean hasConflictMarkers(String body) {
+		return (body != null) && (body.startsWith(MARKER_LOCAL)
+				|| body.contains("\n"+MARKER_LOCAL));
+	}
+
+	/**
+	 * Splits text into lines, keeping the line terminators.
+	 */
+	static String[] splitLines(String text) {
+		List<String> lines = new ArrayList<String>();
+		int start = 0;
+		while (start < text.length()) {
+			int end = text.indexOf('\n', start);
+			end = (end < 0) ? text.length() : end + 1;
+			lines.add(text.substring(start, end));
+			start = end;
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	private static int[] intern(String[] lines, Map<String, Integer> ids) {
+		int[] result = new int[lines.length];
+		for (int i = 0; i < lines.length; i++) {
+			Integer id = ids.get(lines[i]);
+			if (id == null) {
+				id = ids.size();
+				ids.put(lines[i], id);
+			}
+			result[i] = id;
+		}
+		return result;
+	}
+
+	private static void append(StringBuilder out, String[] lines, int start, int end) {
+		for (int i = start; i < end; i++) {
+			out.append(lines[i]);
+		}
+	}
+
+	/**
+	 * Appends one side's version of the base region [regionStart, regionEnd),
+	 * which is covered by the hunks [first, last).
+	 */
+	private static void appendSide(StringBuilder out, String[] lines, List<Hunk> hunks,
+			int first, int last, int regionStart, int regionEnd) {
+		Hunk firstHunk = hunks.get(first);
+		Hunk lastHunk = hunks.get(last - 1);
+		int start = firstHunk.start - (firstHunk.baseStart - regionStart);
+		int end = lastHunk.end + (regionEnd - lastHunk.baseEnd);
+		append(out, lines, start, end);
+	}
+
+	private static void appendMarker(StringBuilder out, String marker) {
+		if ((out.length() > 0) && (out.charAt(out.length() - 1) != '\n')) {
+			out.append('\n');
+		}
+		out.append(marker).append('\n');
+	}
+
+	/**
+	 * Diffs two line sequences.
+	 *
+	 * @return the changed regions, in order
+	 */
+	private static List<Hunk> diff(int[] a, int[] b) {
+		boolean[] deleted = new boolean[a.length];
+		boolean[] inserted = new boolean[b.length];
+		compare(a, 0, a.length, b, 0, b.length, deleted, inserted);
+		List<Hunk> hunks = new ArrayList<Hunk>();
+		int i = 0;
+		int j = 0;
+		while ((i < a.length) || (j < b.length)) {
+			if ((i < a.length) && (j < b.length) && !deleted[i] && !inserted[j]) {
+				i++;
+				j++;
+			} else {
+				int i0 = i;
+				int j0 = j;
+				while ((i < a.length) && deleted[i]) {
+					i++;
+				}
+				while ((j < b.length) && inserted[j]) {
+					j++;
+				}
+				hunks.add(new Hunk(i0, i, j0, j));
+			}
+		}
+		return hunks;
+	}
+
+	/**
+	 * Marks the lines of a[aLo, aHi) and b[bLo, bHi) which are not part of
+	 * their longest common subsequence.
+	 */
+	private static void compare(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi,
+			boolean[] deleted, boolean[] inserted) {
+		while ((aLo < aHi) && (bLo < bHi) && (a[aLo] == b[bLo])) {
+			aLo++;
+			bLo++;
+		}
+		while ((aLo < aHi) && (bLo < bHi) && (a[aHi - 1] == b[bHi - 1])) {
+			aHi--;
+			bHi--;
+		}
+		if (aLo == aHi) {
+			Arrays.fill(inserted, bLo, bHi, true);
+		} else if (bLo == bHi) {
+			Arrays.fill(deleted, aLo, aHi, true);
+		} else {
+			int[] split = middleSnake(a, aLo, aHi, b, bLo, bHi);
+			if (split == null) {
+				Arrays.fill(deleted, aLo, aHi, true);
+				Arrays.fill(inserted, bLo, bHi, true);
+			} else {
+				compare(a, aLo, aLo + split[0], b, bLo, bLo + split[1], deleted, inserted);
+				compare(a, aLo + split[0], aHi, b, bLo + split[1], bHi, deleted, inserted);
+			}
+		}
+	}
+
+	/**
+	 * Runs Myers' search from both ends until the paths meet.
+	 *
+	 * @return the offsets into a and b where the paths meet, or
+	 *         <code>null</code> if the sequences have nothing in common
+	 */
+	private static int[] middleSnake(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi) {
+		final int n = aHi - aLo;
+		final int m = bHi - bLo;
+		final int maxD = (n + m + 1) / 2;
+		final int vOffset = maxD;
+		final int vLength = 2 * maxD + 2;
+		int[] v1 = new int[vLength];
+		int[] v2 = new int[vLength];
+		Arrays.fill(v1, -1);
+		Arrays.fill(v2, -1);
+		v1[vOffset + 1] = 0;
+		v2[vOffset + 1] = 0;
+		final int delta = n - m;
+		// if the delta is odd, the forward path will meet the reverse one
+		final boolean front = (delta % 2 != 0);
+		int k1start = 0;
+		int k1end = 0;
+		int k2start = 0;
+		int k2end = 0;
+		for (int d = 0; d < maxD; d++) {
+			for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+				int k1Offset = vOffset + k1;
+				int x1;
+				if ((k1 == -d) || ((k1 != d) && (v1[k1Offset - 1] < v1[k1Offset + 1]))) {
+					x1 = v1[k1Offset + 1];
+				} else {
+					x1 = v1[k1Offset - 1] + 1;
+				}
+				int y1 = x1 - k1;
+				while ((x1 < n) && (y1 < m) && (a[aLo + x1] == b[bLo + y1])) {
+					x1++;
+					y1++;
+				}
+				v1[k1Offset] = x1;
+				if (x1 > n) {
+					k1end += 2;
+				} else if (y1 > m) {
+					k1start += 2;
+				} else if (front) {
+					int k2Offset = vOffset + delta - k1;
+					if ((k2Offset >= 0) && (k2Offset < vLength) && (v2[k2Offset] != -1)) {
+						if (x1 >= n - v2[k2Offset]) {
+							return new int[] { x1, y1 };
+						}
+					}
+				}
+			}
+			for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+				int k2Offset = vOffset + k2;
+				int x2;
+				if ((k2 == -d) || ((k2 != d) && (v2[k2Offset - 1] < v2[k2Offset + 1]))) {
+					x2 = v2[k2Offset + 1];
+				} else {
+					x2 = v2[k2Offset - 1] + 1;
+				}
+				int y2 = x2 - k2;
+				while ((x2 < n) && (y2 < m)
+						&& (a[aLo + n - x2 - 1] == b[bLo + m - y2 - 1])) {
+					x2++;
+					y2++;
+				}
+				v2[k2Offset] = x2;
+				if (x2 > n) {
+					k2end += 2;
+				} else if (y2 > m) {
+					k2start += 2;
+				} else if (!front) {
+					int k1Offset = vOffset + delta - k2;
+					if ((k1Offset >= 0) && (k1Offset < vLength) && (v1[k1Offset] != -1)) {
+						int x1 = v1[k1Offset];
+						int y1 = vOffset + x1 - k1Offset;
+						if (x1 >= n - x2) {
+							return new int[] { x1, y1 };
+						}
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+import net.andunix.android.BaseActivity;
+import android.content.ActivityNotFoundException;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+import android.widget.Toast;
+
+/**
+ * Shows a page rendered from its markup. The render comes from the
+ * {@link RenderCache} if the page didn't change since it was rendered.
+ */
+public class ViewActivity extends BaseActivity {
+
+	/** the page shown if there is no row id, as linked from another page */
+	public static final String EXTRA_NAME = "name";
+
+	private static final int EDIT_ID = Menu.FIRST;
+
+	private WebView mWebView;
+	private long mRowId = -1L;
+	private String mName;
+	/** the body hash of the render shown */
+	private String mShownHash = null;
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.view);
+		mWebView = (WebView) findViewById(R.id.page);
+		mWebView.setWebViewClient(new WebViewClient() {
+			@Override
+			public boolean shouldOverrideUrlLoading(WebView view, String url) {
+				openLink(url);
+				return true;
+			}
+		});
+		mRowId = getIntent().getLongExtra(DatabaseController.KEY_ROWID, -1L);
+		mName = getIntent().getStringExtra(EXTRA_NAME);
+		if (mName != null) {
+			setTitle(mName);
+		}
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		// the page may have been edited or synced meanwhile
+		loadPage();
+	}
+
+	private void loadPage() {
+		final RenderCache cache = RenderCache.getInstance(this);
+		final PageSaver saver = PageSaver.getInstance(this);
+		final String shownHash = mShownHash;
+		saver.runAfterSaves(new PageSaver.Task<WikiPage>() {
+			@Override
+			public WikiPage run(DatabaseController database) {
+				long rowId = (mRowId >= 0) ? mRowId : database.findPageId(mName);
+				WikiPage info = (rowId >= 0) ? database.getPageInfo(rowId) : null;
+				if ((info == null) || ((shownHash != null) && shownHash.equals(info.bodyHash))) {
+					// gone, or shown already
+					return info;
+				}
+				// reuse the name and id, the body is the render
+				info.body = cache.get(rowId, info.bodyHash);
+				if (info.body == null) {
+					WikiPage page = saver.loadPage(rowId);
+					info.body = (page == null) ? null : cache.render(page);
+				}
+				return info;
+			}
+
+			@Override
+			public void onDone(WikiPage rendered) {
+				if (isFinishing()) {
+					return;
+				}
+				if ((rendered != null) && (rendered.body == null)
+						&& (mShownHash != null) && mShownHash.equals(rendered.bodyHash)) {
+					return;
+				}
+				if ((rendered == null) || (rendered.body == null)) {
+					mShownHash = null;
+					mWebView.loadDataWithBaseURL(null, getString(R.string.no_such_page),
+							"text/html", "utf-8", null);
+					return;
+				}
+				mRowId = rendered.id;
+				mName = rendered.name;
+				mShownHash = rendered.bodyHash;
+				setTitle(mName);
+				mWebView.loadDataWithBaseURL(null, rendered.body, "text/html", "utf-8", null);
+			}
+		});
+	}
+
+	private void openLink(String url) {
+		Intent i;
+		if (url.startsWith(WikiRenderer.PAGE_LINK_SCHEME)) {
+			i = new Intent(this, ViewActivity.class);
+			i.putExtra(EXTRA_NAME, url.substring(WikiRenderer.PAGE_LINK_SCHEME.length()));
+		} else {
+			i = new Intent(Intent.ACTION_VIEW, Uri.parse(url));
+		}
+		try {
+			startActivity(i);
+		} catch (ActivityNotFoundException e) {
+			// a scheme nothing on the device handles
+			Toast.makeText(this, getString(R.string.no_app_for_link, url), Toast.LENGTH_SHORT).show();
+		}
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		super.onCreateOptionsMenu(menu);
+		menu.add(0, EDIT_ID, 0, R.string.menu_edit);
+		return true;
+	}
+
+	@Override
+	public boolean onMenuItemSelected(int featureId, MenuItem item) {
+		switch (item.getItemId()) {
+		case EDIT_ID:
+			if (mRowId >= 0) {
+				Intent i = new Intent(this, EditActivity.class);
+				i.putExtra(DatabaseController.KEY_ROWID, mRowId);
+				startActivity(i);
+			}
+			return true;
+		}
+		return super.onMenuItemSelected(featureId, item);
+	}
+
+}
@@ -20,10 +20,63 @@ package net.andunix.android.wikidroid;
 import java.util.Date;
 
 public class WikiPage {
+	public static final char NAMESPACE_SEPARATOR = ':';
+
 	public long id = 0L;
 	public String name = null;
 	public String body = null;
+	/** the body as stored, if it is compressed and was not read yet */
+	public byte[] compressedBody = null;
 	public Date localChangedAt = null;
 	public Date remoteChangedAt = null;
 	public Date syncedAt = null;
+	/** {@link ContentHash} of the body */
+	public String bodyHash = null;
+	/** {@link ContentHash} of the body as it was last synced */
+	public String syncedHash = null;
+	/**
+	 * the body the local changes are based on, only set to be stored with a
+	 * merge result
+	 */
+	public String baseBody = null;
+
+	/**
+	 * Returns the body, a compressed body is inflated on first access.
+	 */
+	public String getBody() {
+		if ((body == null) && (compressedBody != null)) {
+			body = PageCompression.inflate(compressedBody);
+			compressedBody = null;
+		}
+		return body;
+	}
+
+	/**
+	 * @return the namespace of a page name, <code>""</code> for the root
+	 *         namespace
+	 */
+	public static String getNamespace(String name) {
+		int separator = name.lastIndexOf(NAMESPACE_SEPARATOR);
+		return (separator < 0) ? "" : name.substring(0, separator);
+	}
+
+	/**
+	 * @return a page or namespace name without its parent namespace
+	 */
+	public static String getLeafName(String name) {
+		return name.substring(name.lastIndexOf(NAMESPACE_SEPARATOR) + 1);
+	}
+
+	public void setBody(String body) {
+		this.body = body;
+		this.compressedBody = null;
+	}
+
+	/**
+	 * @return <code>true</code> if the body is known to be the same as when it
+	 *         was last synced
+	 */
+	public boolean isUnchanged() {
+		return (bodyHash != null) && bodyHash.equals(syncedHash);
+	}
 }
@@ -0,0 +1,464 @@
+/*
+ * Copyright 2011 Andreas Huber - http://andunix.net/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.andunix.android.wikidroid;
+
+/**
+ * Renders DokuWiki markup to HTML, without the wiki.
+ * <p>
+ * It knows headings, paragraphs, lists, tables, quotes, code blocks, rules
+ * and the common inline formatting and links. Links to other pages use
+ * {@link #PAGE_LINK_SCHEME}, images are shown as their name as they are not
+ * stored offline. Anything else is shown as text.
+ */
+public class WikiRenderer {
+
+	/** links to pages are <code>wikidroid:namespace:page</code> */
+	public static final String PAGE_LINK_SCHEME = "wikidroid:";
+
+	private static final String HEAD = "<html><head>"
+			+ "<meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\">"
+			+ "<style>body{font-family:sans-serif;margin:8px}"
+			+ "pre{background:#eee;padding:4px;overflow:auto}"
+			+ "table{border-collapse:collapse}td,th{border:1px solid #999;padding:2px 4px}"
+			+ "th{background:#ddd}blockquote{border-left:3px solid #999;margin:0;padding-left:8px}"
+			+ "</style></head><body>";
+	private static final String TAIL = "</body></html>";
+	// the kinds of blocks
+	private static final int LIST = 1;
+	private static final int PRE = 2;
+	private static final int TABLE = 4;
+	private static final int QUOTE = 8;
+	private static final int PARAGRAPH = 16;
+
+	private final String mNamespace;
+	private final StringBuilder mOut;
+	/** the open list tags, <code>ul</code> or <code>ol</code> per level */
+	private final StringBuilder mLists = new StringBuilder();
+	private StringBuilder mParagraph = null;
+	private boolean mInTable = false;
+	private boolean mInQuote = false;
+	private boolean mInPre = false;
+
+	private WikiRenderer(String name, int length) {
+		mNamespace = WikiPage.getNamespace(name);
+		mOut = new StringBuilder(length + length / 4 + HEAD.length());
+	}
+
+	/**
+	 * @param name
+	 *            the page name, links without namespace are relative to it
+	 * @return an HTML document
+	 */
+	public static String render(String name, String body) {
+		WikiRenderer renderer = new WikiRenderer(name, body.length());
+		renderer.mOut.append(HEAD);
+		renderer.renderBlocks(body);
+		renderer.mOut.append(TAIL);
+		return renderer.mOut.toString();
+	}
+
+	private void renderBlocks(String body) {
+		String[] lines = body.split("\r?\n", -1);
+		int i = 0;
+		while (i < lines.length) {
+			String line = lines[i++];
+			String trimmed = line.trim();
+			if (trimmed.startsWith("<code") || trimmed.startsWith("<file")) {
+				final String end = trimmed.startsWith("<code") ? "</code>" : "</file>";
+				closeBlocks();
+				StringBuilder code = new StringBuilder();
+				String rest = line.substring(line.indexOf('>') + 1);
+				while (rest.indexOf(end) < 0) {
+					if (rest.length() > 0) {
+						code.append(rest).append('\n');
+					}
+					if (i >= lines.length) {
+						rest = end;
+						break;
+					}
+					rest = lines[i++];
+				}
+				code.append(rest.substring(0, rest.indexOf(end)));
+				mOut.append("<pre>");
+				escape(code, 0, code.length());
+				mOut.append("</pre>\n");
+				continue;
+			}
+			if (trimmed.length() == 0) {
+				closeBlocks();
+				continue;
+			}
+			int listDepth = getListDepth(line);
+			if (listDepth > 0) {
+				closeBlocksExcept(LIST);
+				renderListItem(listDepth, line.trim());
+				continue;
+			}
+			if (line.startsWith("  ") || line.startsWith("\t")) {
+				closeBlocksExcept(PRE);
+				if (!mInPre) {
+					mOut.append("<pre>");
+					mInPre = true;
+				}
+				escape(line, line.startsWith("\t") ? 1 : 2, line.length());
+				mOut.append('\n');
+				continue;
+			}
+			if (isHeading(trimmed)) {
+				closeBlocks();
+				renderHeading(trimmed);
+				continue;
+			}
+			if ((trimmed.length() >= 4) && trimmed.replace("-", "").length() == 0) {
+				closeBlocks();
+				mOut.append("<hr>\n");
+				continue;
+			}
+			if ((line.charAt(0) == '^') || (line.charAt(0) == '|')) {
+				closeBlocksExcept(TABLE);
+				if (!mInTable) {
+					mOut.append("<table>\n");
+					mInTable = true;
+				}
+				renderTableRow(trimmed);
+				continue;
+			}
+			if (line.charAt(0) == '>') {
+				closeBlocksExcept(QUOTE);
+				if (!mInQuote) {
+					mOut.append("<blockquote>");
+					mInQuote = true;
+				}
+				int start = 0;
+				while ((start < line.length()) && (line.charAt(start) == '>')) {
+					start++;
+				}
+				inline(line.substring(start).trim());
+				mOut.append("<br>");
+				continue;
+			}
+			closeBlocksExcept(PARAGRAPH);
+			if (mParagraph == null) {
+				mParagraph = new StringBuilder();
+			} else {
+				mParagraph.append('\n');
+			}
+			mParagraph.append(line);
+		}
+		closeBlocks();
+	}
+
+	private void closeBlocks() {
+		closeBlocksExcept(0);
+	}
+
+	/**
+	 * Ends the open blocks, except for the kinds given.
+	 */
+	private void closeBlocksExcept(int keep) {
+		if ((keep & LIST) == 0) {
+			closeLists(0);
+		}
+		if (((keep & PRE) == 0) && mInPre) {
+			mOut.append("</pre>\n");
+			mInPre = false;
+		}
+		if (((keep & TABLE) == 0) && mInTable) {
+			mOut.append("</table>\n");
+			mInTable = false;
+		}
+		if (((keep & QUOTE) == 0) && mInQuote) {
+			mOut.append("</blockquote>\n");
+			mInQuote = false;
+		}
+		if (((keep & PARAGRAPH) == 0) && (mParagraph != null)) {
+			mOut.append("<p>");
+			inline(mParagraph.toString());
+			mOut.append("</p>\n");
+			mParagraph = null;
+		}
+	}
+
+	/**
+	 * @return the nesting level of a list item, two spaces or a tab per
+	 *         level, 0 if the line is no list item
+	 */
+	private static int getListDepth(String line) {
+		int spaces = 0;
+		int i = 0;
+		while (i < line.length()) {
+			char c = line.charAt(i);
+			if (c == ' ') {
+				spaces++;
+			} else if (c == '\t') {
+				spaces += 2;
+			} else {
+				break;
+			}
+			i++;
+		}
+		if ((spaces < 2) || (i >= line.length())) {
+			return 0;
+		}
+		char bullet = line.charAt(i);
+		return ((bullet == '*') || (bullet == '-')) ? spaces / 2 : 0;
+	}
+
+	private void renderListItem(int depth, String item) {
+		final String tag = (item.charAt(0) == '-') ? "ol" : "ul";
+		closeLists(depth);
+		if ((mLists.length() == 2 * depth) && !mLists.substring(2 * depth - 2).equals(tag)) {
+			// a different kind of list at the same level
+			closeLists(depth - 1);
+		}
+		while (mLists.length() < 2 * depth) {
+			mOut.append('<').append(tag).append('>');
+			mLists.append(tag);
+		}
+		mOut.append("<li>");
+		inline(item.substring(1).trim());
+		mOut.append("</li>\n");
+	}
+
+	/**
+	 * Closes the lists nested deeper than <code>depth</code>.
+	 */
+	private void closeLists(int depth) {
+		while (mLists.length() > 2 * depth) {
+			final int start = mLists.length() - 2;
+			mOut.append("</").append(mLists, start, start + 2).append('>');
+			mLists.setLength(start);
+		}
+	}
+
+	private static boolean isHeading(String line) {
+		return (line.length() > 4) && line.startsWith("==") && line.endsWith("==");
+	}
+
+	private void renderHeading(String line) {
+		int marks = 0;
+		while ((marks < line.length()) && (line.charAt(marks) == '=')) {
+			marks++;
+		}
+		int end = line.length();
+		while ((end > marks) && (line.charAt(end - 1) == '=')) {
+			end--;
+		}
+		// ====== is the top level heading
+		int level = Math.max(1, Math.min(5, 7 - marks));
+		String title = line.substring(marks, end).trim();
+		mOut.append("<h").append(level).append('>');
+		escape(title, 0, title.length());
+		mOut.append("</h").append(level).append(">\n");
+	}
+
+	private void renderTableRow(String line) {
+		mOut.append("<tr>");
+		int start = 1;
+		char separator = line.charAt(0);
+		while (start < line.length()) {
+			int end = findCellEnd(line, start);
+			if (end < 0) {
+				// text after the last separator
+				end = line.length();
+			}
+			String cell = line.substring(start, end).trim();
+			String tag = (separator == '^') ? "th" : "td";
+			mOut.append('<').append(tag).append('>');
+			inline(cell);
+			mOut.append("</").append(tag).append('>');
+			if (end < line.length()) {
+				separator = line.charAt(end);
+			}
+			start = end + 1;
+		}
+		mOut.append("</tr>\n");
+	}
+
+	/**
+	 * @return the next cell separator, ignoring the ones within links
+	 */
+	private static int findCellEnd(String line, int start) {
+		int i = start;
+		while (i < line.length()) {
+			if (line.startsWith("[[", i) || line.startsWith("{{", i)) {
+				int close = line.indexOf(line.startsWith("[[", i) ? "]]" : "}}", i + 2);
+				if (close > 0) {
+					i = close + 2;
+					continue;
+				}
+			}
+			char c = line.charAt(i);
+			if ((c == '|') || (c == '^')) {
+				return i;
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Renders the inline markup of a block, formatting left open is closed
+	 * at its end.
+	 */
+	private void inline(String text) {
+		boolean bold = false;
+		boolean italic = false;
+		boolean underline = false;
+		boolean mono = false;
+		final int length = text.length();
+		int i = 0;
+		while (i < length) {
+			char c = text.charAt(i);
+			if (text.startsWith("http://", i) || text.startsWith("https://", i)) {
+				int end = i;
+				while ((end < length) && !Character.isWhitespace(text.charAt(end))) {
+					end++;
+				}
+				while (".,;:!?)".indexOf(text.charAt(end - 1)) >= 0) {
+					// punctuation after the link
+					end--;
+				}
+				String url = text.substring(i, end);
+				link(url, url);
+				i = end;
+			} else if (text.startsWith("[[", i) && (text.indexOf("]]", i + 2) > 0)) {
+				int end = text.indexOf("]]", i + 2);
+				String link = text.substring(i + 2, end);
+				int bar = link.indexOf('|');
+				String target = ((bar < 0) ? link : link.substring(0, bar)).trim();
+				String label = (bar < 0) ? target : link.substring(bar + 1).trim();
+				link(target.indexOf("://") > 0 ? target : resolve(target), label);
+				i = end + 2;
+			} else if (text.startsWith("{{", i) && (text.indexOf("}}", i + 2) > 0)) {
+				int end = text.indexOf("}}", i + 2);
+				String media = text.substring(i + 2, end);
+				int bar = media.indexOf('|');
+				String label = ((bar < 0) ? media : media.substring(bar + 1)).trim();
+				mOut.append("<i>[");
+				escape(label, 0, label.length());
+				mOut.append("]</i>");
+				i = end + 2;
+			} else if (text.startsWith("**", i)) {
+				mOut.append(bold ? "</b>" : "<b>");
+				bold = !bold;
+				i += 2;
+			} else if (text.startsWith("//", i)) {
+				mOut.append(italic ? "</i>" : "<i>");
+				italic = !italic;
+				i += 2;
+			} else if (text.startsWith("__", i)) {
+				mOut.append(underline ? "</u>" : "<u>");
+				underline = !underline;
+				i += 2;
+			} else if (text.startsWith("''", i)) {
+				mOut.append(mono ? "</tt>" : "<tt>");
+				mono = !mono;
+				i += 2;
+			} else if (text.startsWith("<del>", i) || text.startsWith("</del>", i)) {
+				int end = text.indexOf('>', i) + 1;
+				mOut.append(text, i, end);
+				i = end;
+			} else if (text.startsWith("\\\\", i)
+					&& ((i + 2 == length) || Character.isWhitespace(text.charAt(i + 2)))) {
+				mOut.append("<br>");
+				i += 2;
+			} else {
+				escape(c);
+				i++;
+			}
+		}
+		if (mono) {
+			mOut.append("</tt>");
+		}
+		if (underline) {
+			mOut.append("</u>");
+		}
+		if (italic) {
+			mOut.append("</i>");
+		}
+		if (bold) {
+			mOut.append("</b>");
+		}
+	}
+
+	private void link(String href, String label) {
+		mOut.append("<a href=\"");
+		escape(href, 0, href.length());
+		mOut.append("\">");
+		escape(label, 0, label.length());
+		mOut.append("</a>");
+	}
+
+	/**
+	 * Turns a page link into a page name the way DokuWiki does: names
+	 * without namespace and names starting with <code>.</code> are relative
+	 * to the page's namespace.
+	 *
+	 * @return the link to the page
+	 */
+	private String resolve(String target) {
+		int anchor = target.indexOf('#');
+		if (anchor >= 0) {
+			target = target.substring(0, anchor);
+		}
+		String name = target.trim().toLowerCase().replace(' ', '_');
+		String namespace = mNamespace;
+		if (name.startsWith("..:")) {
+			namespace = WikiPage.getNamespace(namespace);
+			name = name.substring(3);
+		} else if (name.startsWith(".:")) {
+			name = name.substring(2);
+		} else if (name.indexOf(WikiPage.NAMESPACE_SEPARATOR) >= 0) {
+			namespace = "";
+		}
+		if (name.startsWith(":")) {
+			name = name.substring(1);
+		}
+		if (namespace.length() > 0) {
+			name = namespace + WikiPage.NAMESPACE_SEPARATOR + name;
+		}
+		return PAGE_LINK_SCHEME + name;
+	}
+
+	private void escape(CharSequence text, int start, int end) {
+		for (int i = start; i < end; i++) {
+			escape(text.charAt(i));
+		}
+	}
+
+	private void escape(char c) {
+		switch (c) {
+		case '<':
+			mOut.append("&lt;");
+			break;
+		case '>':
+			mOut.append("&gt;");
+			break;
+		case '&':
+			mOut.append("&amp;");
+			break;
+		case '"':
+			mOut.append("&quot;");
+			break;
+		default:
+			mOut.append(c);
+		}
+	}
+
+}